@@ -0,0 +1,74 @@
+/* BitChoker.java:  tit-for-tat choice of which peers to upload to */
+/* Christopher Chute */
+
+/* every ROUND_MS the interested peers are ranked by how fast they upload */
+/* to us (or, once seeding, how fast we upload to them) and the best get */
+/* the regular unchoke slots. one more slot is an optimistic unchoke that */
+/* moves to a random other interested peer every OPTIMISTIC_ROUNDS rounds, */
+/* so new peers get a chance to show what they can give */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+public class BitChoker {
+    public static final long ROUND_MS = 10 * 1000;    // between choking rounds
+    private static final int OPTIMISTIC_ROUNDS = 3;   // optimistic lasts 30 s
+
+    private final int slots;                 // peers unchoked at once
+    private final Random random = new Random();
+    private BitPeer optimistic = null;       // current optimistic unchoke
+    private int round = 0;
+    private long lastRound;
+
+    /* BitChoker:  slots counts the optimistic unchoke too */
+    /* the first round is due ROUND_MS from now */
+    public BitChoker(int slots) {
+        this.slots = slots;
+        this.lastRound = System.currentTimeMillis();
+    }
+
+    /* isDue:  true once a round is due at time nowMs */
+    public boolean isDue(long nowMs) {
+        return nowMs - lastRound >= ROUND_MS;
+    }
+
+    /* rechoke:  run a choking round over the connected peers */
+    /* return the peers to unchoke; every other peer should be choked */
+    public Set<BitPeer> rechoke(List<BitPeer> peers, boolean isSeeder, long nowMs) {
+        lastRound = nowMs;
+        List<BitPeer> interested = new ArrayList<>();
+        for (BitPeer peer : peers) {
+            if (peer.remoteIsInterested && !peer.isClosed()) {
+                interested.add(peer);
+            }
+        }
+        // best rate first, ties at random
+        Collections.shuffle(interested, random);
+        Comparator<BitPeer> byRate = isSeeder
+                ? Comparator.comparingDouble(p -> p.getSendRate(nowMs))
+                : Comparator.comparingDouble(p -> p.getReceiveRate(nowMs));
+        interested.sort(byRate.reversed());
+
+        Set<BitPeer> unchoke = new HashSet<>();
+        int regular = Math.min(slots - 1, interested.size());
+        unchoke.addAll(interested.subList(0, regular));
+
+        // keep the optimistic unchoke for its rounds while it stays interested
+        boolean isRotation = (round++ % OPTIMISTIC_ROUNDS == 0);
+        if (isRotation || !interested.contains(optimistic)
+                || unchoke.contains(optimistic)) {
+            List<BitPeer> others = interested.subList(regular, interested.size());
+            optimistic = others.isEmpty()
+                    ? null : others.get(random.nextInt(others.size()));
+        }
+        if (optimistic != null) {
+            unchoke.add(optimistic);
+        }
+        return unchoke;
+    }
+}
@@ -1,295 +1,206 @@
 /* BitClient.java:  client for BitTorrent protocol */
 /* Christopher Chute */
 
-import util.bencode.BDecoder;
-import util.bencode.BDict;
-import util.bencode.BObject;
 import util.lib.BitLibrary;
+import util.lib.BufferPool;
+import util.lib.Log;
+import util.lib.TimingWheel;
+import util.metrics.Counter;
+import util.metrics.Histogram;
+import util.metrics.MetricsRegistry;
+import util.metrics.MetricsServer;
 
-import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.net.InetAddress;
-import java.net.Socket;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.*;
-
-/* BitClient:  manages a BitTorrent connection session */
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.JMException;
+
+/* BitClient:  manages a BitTorrent session of one or more torrents */
+/* the torrents share one welcome port, event loop, disk and hashing */
+/* threads, and budgets of peers and upload slots; each BitTorrent holds */
+/* its own pieces and peers. an incoming peer is routed to its torrent */
+/* by the info-hash in its handshake */
 @SuppressWarnings("ALL")
 public class BitClient {
     private static final String TRNT_DIR = "./test/torrents/";
-    private static final String DNLD_DIR = "./test/downloads/";
-    private static final String UPLD_DIR = "./test/uploads/";
-    private static final int MAX_UNCHOKED = 4;         // only unchoke 4 at once
-    private static final int SHA_LENGTH = 20;          // bytes in a SHA1 hash
-    private static final int INT_LEN = 4;              // bytes in an Integer
-    private static boolean _DEBUG = false;             // debugging flag
-    private static String encoded;                     // Bencoded .torrent file
-    private static String infoBencoded;                // Bencoded info dict
-    private static int fileLength = -1;                // len of whole file
-    private static int pieceLength = -1;               // len of each piece
-    private static int numPieces = -1;                 // num. of pieces in file
-    // request random pieces
-    private static boolean[] localBitfield = null;     // pieces client has
+    static final String DNLD_DIR = "./test/downloads/";
+    static final String UPLD_DIR = "./test/uploads/";
+    private static final int DEFAULT_UNCHOKED = 4;     // upload slots
+    private static final int DEFAULT_MAX_PEERS = 200;  // connections, all torrents
+    private static final long IDLE_WAIT_MS = 1000;    // max sleep with no work
+    private static final int DISK_THREADS = 2;         // disk I/O workers
+    private static final long MAX_DISK_BYTES = 8 * 1024 * 1024; // queued writes
+    private static final long KEEP_ALIVE_MS = 2 * 60 * 1000;     // send silence
+    private static final long DEFAULT_IDLE_MS = 3 * 60 * 1000;   // receive silence
+    private static final int MAX_HALF_OPEN = 16;       // dials at once
+    private static final BitMessage KEEP_ALIVE_MSG
+            = new BitMessage(BitMessage.MessageType.KEEP_ALIVE);
+    static final Object clientLock = new Object();     // guards peer state
+    static BitDiskIO diskIO = null;                    // writes off the loop
+    static ForkJoinPool verifyPool = null;             // hashes off the loop
+    static BitSignal workSignal = null;                // wakes the main loop
+    static final AtomicInteger numPeers = new AtomicInteger(); // all torrents
+    static final TimingWheel<BitPeer> peerTimers       // keep-alives, idle peers
+            = new TimingWheel<>(512, 1000, System.currentTimeMillis());
+    private static long idleTimeout = DEFAULT_IDLE_MS; // drop peers silent this long
+    private static final ArrayList<BitTorrent> torrents = new ArrayList<>();
+    private static final HashMap<ByteBuffer, BitTorrent> byInfoHash
+            = new HashMap<>();                         // routes incoming peers
+    private static final ArrayList<String> torrentNames = new ArrayList<>();
+    private static final ArrayList<InetSocketAddress> peerAddrs
+            = new ArrayList<>();                       // -p peers, every torrent
+    private static int maxUnchoked = DEFAULT_UNCHOKED; // upload slots, all torrents
+    private static int maxPeers = DEFAULT_MAX_PEERS;   // connections, all torrents
     private static String savePath = null;             // save location
-    private static RandomAccessFile file = null;       // file to transfer
-    private static String trackerURL = null;           // URL of tracker
+    private static boolean checkOnStart = false;       // recheck existing data
+    private static boolean useMappedStorage = false;   // mmap file to transfer
     private static boolean isSeeder = false;           // client has entire file
     private static boolean runSlowly = false;          // run slowly for testing
     private static int welcomePort = 6789;             // port for listening
-    private static LinkedList<Socket> welcomeQ = null; // pending peer conn's
-    private static ArrayList<BitPeer> peerList = null; // connected peers
+    private static LinkedList<BitWelcomer.Admission> welcomeQ = null; // handshaken peers
+    private static BitWelcomer welcomer = null;        // admits incoming peers
+    private static String engine = "nio";              // peer I/O engine
+    private static BitSelector selector = null;        // null unless nio engine
+    private static boolean useVirtualThreads = false;  // thread engine threads
+    private static ExecutorService peerExecutor = null;// null unless thread engine
+    private static BitDialer dialer = null;            // connects to peers
+    private static int metricsPort = -1;               // HTTP metrics, if > 0
+
+    /* metrics:  exported through JMX and, with -o, over HTTP */
+    /* totals kept per session, torrent and peer have a name per level, */
+    /* bt_session_, bt_torrent_ and bt_peer_, so no sum counts twice */
+    static final MetricsRegistry metrics = new MetricsRegistry();
+    static final Counter totalDownloaded = metrics.counter(
+            "bt_session_downloaded_bytes_total", "", "Block bytes received in PIECE messages");
+    static final Counter totalUploaded = metrics.counter(
+            "bt_session_uploaded_bytes_total", "", "Block bytes sent in PIECE messages");
+    static final Counter[] messagesReceived
+            = new Counter[BitMessage.MessageType.values().length];
+    static final Counter[] messagesSent
+            = new Counter[BitMessage.MessageType.values().length];
+    static final Histogram requestLatency = metrics.histogram(
+            "bt_request_latency_us", "", "Time from a REQUEST to its PIECE");
+    static final Histogram writeLatency = metrics.histogram(
+            "bt_disk_write_latency_us", "", "Time from a PIECE to its block on disk");
+    static final Histogram verifyLatency = metrics.histogram(
+            "bt_verify_latency_us", "", "Time from a piece on disk to its hash check");
+    static final BufferPool blockPool                  // received PIECE blocks
+            = new BufferPool(new int[]{BitPiece.BLOCK_SIZE}, 64, 16);
+
+    static {
+        metrics.rate("bt_session_download_rate_bytes", "",
+                "Block bytes received per second", totalDownloaded);
+        metrics.rate("bt_session_upload_rate_bytes", "",
+                "Block bytes sent per second", totalUploaded);
+        for (BitMessage.MessageType type : BitMessage.MessageType.values()) {
+            String label = MetricsRegistry.label("type", type.name());
+            messagesReceived[type.ordinal()] = metrics.counter(
+                    "bt_messages_received_total", label, "Messages received by type");
+            messagesSent[type.ordinal()] = metrics.counter(
+                    "bt_messages_sent_total", label, "Messages sent by type");
+        }
+    }
 
     public static void main(String[] args) {
-        BitMessage unchoke = new BitMessage(BitMessage.MessageType.UNCHOKE);
-        // get client settings from command line, including peerList
+        // get client settings from command line, including peers
         if (parseArgs(args) == -1) {
             System.out.println("Error on arguments.");
             return;
         }
 
-        // parse the metainfo from .torrent file
+        // parse the metainfo from each .torrent file
         if (initClient() == -1) {
             return;
         }
-        // guaranteed initialized: fileLength, pieceLength, file, pieces,
-        // welcomer, infoBencoded
-        logOutput(BitLibrary.getTimeString() + ": PARSED .TORRENT INFO");
-        logOutput("\t   LOCATION OF FILE " + savePath);
-        logOutput("\t   FILE OF LENGTH " + fileLength);
-        logOutput("\t   PCS. OF LENGTH " + pieceLength);
-        logOutput("\t   INIT BITFIELD  " + BitLibrary.getBitString(localBitfield));
+        for (BitTorrent torrent : torrents) {
+            torrent.logInfo();
+        }
         logOutput(BitLibrary.getTimeString()
                 + ": LISTENING ON PORT " + welcomePort);
 
-        // open connection and send handshakes to all peers
-        Iterator<BitPeer> it = peerList.iterator();
-        while (it.hasNext()) {
-            BitPeer peer = it.next();
-            if (peer.connect() == -1) {
-                it.remove();
-                continue;
-            }
-            peer.sendHandshake(infoBencoded);
-            BitMessage bfmsg = new BitMessage(BitMessage.MessageType.BITFIELD,
-                    BitLibrary.booleanToBits(localBitfield));
-            sendMessage(peer, bfmsg);
-            logOutput(BitLibrary.getTimeString() + ": HANDSHAKE INITIALIZED");
-            peer.receiveHandshake(infoBencoded);
-            logOutput(BitLibrary.getTimeString() + ": HANDSHAKE COMPLETE");
-        }
-
-        // randomly unchoke four peers (all peers if <= 4 are connected)
-        int numUnchoked = -1;
-        if (peerList.size() <= MAX_UNCHOKED) {
-            for (BitPeer peer : peerList) {
-                sendMessage(peer, unchoke);
-                peer.remoteIsChoked = false;
-            }
-            numUnchoked = peerList.size();
-        } else {
-            Set<Integer> toUnchoke
-                    = BitLibrary.getRandomSet(MAX_UNCHOKED, 0, peerList.size());
-            for (Integer i : toUnchoke) {
-                sendMessage(peerList.get(i), unchoke);
-                peerList.get(i).remoteIsChoked = false;
+        // connect to all peers, for each torrent, several at once; each
+        // is unchoked as it connects if a slot is free
+        synchronized (clientLock) {
+            for (BitTorrent torrent : torrents) {
+                for (InetSocketAddress addr : peerAddrs) {
+                    torrent.markDialed(addr);    // not dialed again for the tracker
+                    dialer.submit(torrent, addr);
+                }
             }
-            numUnchoked = MAX_UNCHOKED;
         }
 
         while (true) {
-            // accept connection to new peer (if any)
+            // take on the peers the welcomer has admitted (if any)
+            List<BitWelcomer.Admission> admitted = new ArrayList<>();
             synchronized (welcomeQ) {
                 // avoid busy-wait with no peers
-                while (welcomeQ.isEmpty() && peerList.isEmpty()) {
+                if (welcomeQ.isEmpty() && numPeers.get() == 0
+                        && !hasTrackerPeers()) {
+                    logOutput(BitLibrary.getTimeString()
+                            + ": WAITING FOR PEERS");
+                }
+                while (welcomeQ.isEmpty() && numPeers.get() == 0
+                        && !hasTrackerPeers()) {
                     try {
-                        logOutput(BitLibrary.getTimeString()
-                                + ": WAITING FOR PEERS");
-                        welcomeQ.wait();
+                        welcomeQ.wait(IDLE_WAIT_MS);
                     } catch (InterruptedException ignored) {
                     }
                 }
-                // clear the empty queue by accepting new peers
-                while (!welcomeQ.isEmpty()) {
-                    Socket peerSocket = welcomeQ.poll();
-                    BitPeer peer = new BitPeer(peerSocket);
-
-                    if (peer.receiveHandshake(infoBencoded) == 0) {
-                        // add to peerList
-                        logOutput(BitLibrary.getTimeString() + ": ADDED PEER AT "
-                                + peer.getIP());
-                        peerList.add(peer);
-                        // complete the handshake
-                        peer.sendHandshake(infoBencoded);
-                        logOutput(BitLibrary.getTimeString()
-                                + ": COMPLETED HANDSHAKE WITH " + peer.getIP());
-                        // send bitfield
-                        BitMessage bitfieldMsg
-                                = new BitMessage(BitMessage.MessageType.BITFIELD,
-                                BitLibrary.booleanToBits(localBitfield));
-                        sendMessage(peer, bitfieldMsg);
-                        // unchoke if spots are available
-                        if (numUnchoked < MAX_UNCHOKED) {
-                            peer.remoteIsChoked = false;
-                            sendMessage(peer, unchoke);
-                            numUnchoked++;
-                        }
+                admitted.addAll(welcomeQ);
+                welcomeQ.clear();
+            }
+            for (BitWelcomer.Admission admission : admitted) {
+                BitTorrent torrent = admission.torrent;
+                BitPeer peer = admission.peer;
+                if (!hasPeerRoom()) {
+                    logDebug("at " + maxPeers + " peers, refusing " + peer.getIP());
+                    welcomer.release(peer.getIP());
+                    peer.close();
+                } else if (peerExecutor != null) {
+                    peerExecutor.execute(() -> runPeer(torrent, peer));
+                } else {
+                    peer.startReader(selector);
+                    synchronized (clientLock) {
+                        torrent.welcomePeer(peer);
                     }
-
                 }
             }
 
-            // process one outstanding message for each peer
-            for (BitPeer peer : peerList) {
-                BitMessage msg = peer.getNextMessage();
-                if (msg == null) {
-                    continue;
-                }
-
-                // parse the message type and process accordingly
-                logOutput(BitLibrary.getTimeString() + ": RECEIVED MESSAGE TYPE "
-                        + msg.getType() + " FROM " + peer.getIP());
-                peer.updateLastUsed();
-                if (msg.getType() == BitMessage.MessageType.KEEP_ALIVE) {
-                    // already updated lastUsed
-                } else if (msg.getType() == BitMessage.MessageType.CHOKE) {
-                    logDebug("CHOKE Message");
-                    peer.localIsChoked = true;
-                } else if (msg.getType() == BitMessage.MessageType.UNCHOKE) {
-                    logDebug("UNCHOKE Message");
-                    peer.localIsChoked = false;
-                } else if (msg.getType() == BitMessage.MessageType.INTERESTED) {
-                    logDebug("INTERESTED Message");
-                    peer.remoteIsInterested = true;
-                } else if (msg.getType() == BitMessage.MessageType.UNINTERESTED) {
-                    logDebug("UNINTERESTED Message");
-                    peer.remoteIsInterested = false;
-                } else if (msg.getType() == BitMessage.MessageType.HAVE) {
-                    peer.addToBitfield(msg.getIndex());
-                    logOutput(BitLibrary.getTimeString()
-                            + ": PEER " + peer.getIP()
-                            + " HAS "
-                            + BitLibrary.getBitString(peer.getBitfield()));
-                    // say interested if we don't have this piece
-                    if (!localBitfield[msg.getIndex()]) {
-                        sendMessage(peer,
-                                new BitMessage(BitMessage.MessageType.INTERESTED));
-                    } else if (BitLibrary.isAllTrue(peer.getBitfield())) {
-                        // make room for others if peer is now seeder
-                        if (!peer.remoteIsChoked) {
-                            peer.remoteIsChoked = true;
-                            sendMessage(peer, new BitMessage(BitMessage.MessageType.CHOKE));
-                            --numUnchoked;
-                        }
+            int numProcessed = 0;
+            synchronized (clientLock) {
+                // connect to peers the trackers have found; queued dials
+                // count too, so no more are queued than there is room for
+                for (BitTorrent torrent : torrents) {
+                    InetSocketAddress addr;
+                    while (numPeers.get() + dialer.getPending() < maxPeers
+                            && (addr = torrent.pollTrackerPeer()) != null) {
+                        logDebug("dialing " + addr + " from tracker");
+                        dialer.submit(torrent, addr);
                     }
-                } else if (msg.getType() == BitMessage.MessageType.BITFIELD) {
-                    boolean[] bf = BitLibrary.bitsToBoolean(msg.getBitfield(), numPieces);
-                    peer.setBitfield(bf);
-                    logOutput(BitLibrary.getTimeString()
-                            + ": PEER " + peer.getIP()
-                            + " HAS "
-                            + BitLibrary.getBitString(peer.getBitfield()));
-                } else if (msg.getType() == BitMessage.MessageType.REQUEST) {
-                    logDebug("REQUEST Message: Peer wants piece " + msg.getIndex());
-                    if (peer.remoteIsChoked) {
-                        logDebug("But peer is choked, not sending");
-                    } else {
-                        BitMessage reply = null;
-                        // make sure client has this piece
-                        if (!localBitfield[msg.getIndex()]) {
-                            // peer has incorrect bitfield info, send another
-                            logDebug("warning: peer incorrectly thinks we have " + msg.getIndex());
-                            reply = new BitMessage(BitMessage.MessageType.BITFIELD,
-                                    BitLibrary.booleanToBits(localBitfield));
-                            // read the piece from the file
-                        } else {
-                            byte[] replyData = new byte[msg.getBlockLength()];
-                            int numRead = 0;
-                            try {
-                                file.seek(msg.getBegin());
-                                numRead = file.read(replyData, 0, msg.getBlockLength());
-                                logDebug("Read " + numRead + " bytes from file");
-                            } catch (IOException ex) {
-                                ex.printStackTrace();
-                            }
-                            reply = new BitMessage(BitMessage.MessageType.PIECE,
-                                    msg.getIndex(), msg.getBegin(), replyData);
-                        }
-
-                        sendMessage(peer, reply);
-                        logOutput(BitLibrary.getTimeString()
-                                + ": SENT PIECE " + msg.getIndex()
-                                + " TO " + peer.getIP());
-                    }
-                } else if (msg.getType() == BitMessage.MessageType.PIECE) {
-                    if (localBitfield[msg.getIndex()]) {
-                        logDebug("warning: received piece already had");
-                        continue;
-                    }
-                    // seek and write in the file
-                    try {
-                        file.seek(msg.getBegin());
-                        file.write(msg.getBlock());
-                    } catch (Exception ex) {
-                        ex.printStackTrace();
-                    }
-                    // update bitfield, send HAVE response to ALL peers
-                    localBitfield[msg.getIndex()] = true;
-                    BitMessage haveMsg
-                            = new BitMessage(BitMessage.MessageType.HAVE,
-                            msg.getIndex());
-                    for (BitPeer p : peerList) {
-                        sendMessage(p, haveMsg);
-                    }
-                    logOutput(BitLibrary.getTimeString() + ": NOW HAVE "
-                            + BitLibrary.getBitString(localBitfield));
-
-                    // become a seeder if all downloaded
-                    if (BitLibrary.isAllTrue(localBitfield)) {
-                        logOutput(BitLibrary.getTimeString() + ": DOWNLOAD COMPLETE");
-                        logDebug("local bitfield "
-                                + BitLibrary.getBitString(localBitfield));
-                        isSeeder = true;
-                    }
-                } else if (msg.getType() == BitMessage.MessageType.CANCEL) {
-                    // used in "end game" mode, not implemented in this project
-                } else {
-                    throw new RuntimeException("Invalid MessageType received");
                 }
-            }
-            // (ii): update interested status
-            for (BitPeer peer : peerList) {
-                if (!peer.localIsInterested
-                        && peer.getRarePiece(localBitfield) > -1) {
-                    peer.localIsInterested = true;
-                    BitMessage msg
-                            = new BitMessage(BitMessage.MessageType.INTERESTED);
-                    sendMessage(peer, msg);
-                }
-            }
 
-            // (iii): request pieces from all unchoked peers
-            if (!isSeeder) {    // missing at least one piece
-                for (BitPeer peer : peerList) {
-                    int index;
-                    if (!peer.localIsChoked && peer.localIsInterested
-                            && (index = peer.getRarePiece(localBitfield)) > -1
-                            && !peer.outstandingRequests.contains(index)) {
-                        int indexLength = pieceLength;
-                        if (index == numPieces - 1 && fileLength % pieceLength > 0) {
-                            indexLength = fileLength % pieceLength;
-                        }
-                        BitMessage request
-                                = new BitMessage(BitMessage.MessageType.REQUEST,
-                                index, index * pieceLength, indexLength);
-                        peer.outstandingRequests.add(index);
-                        sendMessage(peer, request);
-                    }
+                // send keep-alives and close idle peers, then finish blocks
+                // that have reached the disk and step each torrent
+                long now = System.currentTimeMillis();
+                numProcessed += peerTimers.advance(now, BitClient::checkPeer);
+                numProcessed += diskIO.runCompletions();
+                for (BitTorrent torrent : torrents) {
+                    numProcessed += torrent.step(now);
                 }
             }
+            // sleep until a peer or the welcomer has work for us
+            if (numProcessed == 0) {
+                workSignal.await(IDLE_WAIT_MS);
+            }
             // insert pauses for debugging
             if (runSlowly) {
                 try {
@@ -301,10 +212,152 @@ public class BitClient {
         }
     }
 
+    /* schedulePeer:  start the keep-alive and idle checks of a newly */
+    /* connected peer */
+    /* caller holds clientLock */
+    static void schedulePeer(BitPeer peer) {
+        peer.setTimer(peerTimers.newTimer(peer));
+        rescheduleCheck(peer);
+    }
+
+    /* checkPeer:  a peer's timer has expired, so send it a KEEP_ALIVE if */
+    /* we have not sent it anything for a while, or close it if it has */
+    /* not sent us anything for longer; closed peers are dropped by their */
+    /* torrent, freeing their upload slots and block requests */
+    /* caller holds clientLock */
+    private static void checkPeer(BitPeer peer) {
+        if (peer.isClosed()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (now - peer.getLastReceived() >= idleTimeout) {
+            logOutput(BitLibrary.getTimeString() + ": TIMED OUT PEER AT "
+                    + peer.getIP());
+            peer.close();
+            return;
+        }
+        if (now - peer.getLastSent() >= KEEP_ALIVE_MS) {
+            sendMessage(peer, KEEP_ALIVE_MSG);
+        }
+        rescheduleCheck(peer);
+    }
+
+    /* rescheduleCheck:  check the peer again when a KEEP_ALIVE or its */
+    /* timeout would next be due; activity in between only moves the */
+    /* timestamps, and the check puts the timer off again */
+    private static void rescheduleCheck(BitPeer peer) {
+        peerTimers.schedule(peer.getTimer(),
+                Math.min(peer.getLastReceived() + idleTimeout,
+                         peer.getLastSent() + KEEP_ALIVE_MS));
+    }
+
+    /* startPeer:  serve a peer the dialer has connected to */
+    /* called on a dialer thread; the peer is added before the dial stops */
+    /* counting as half-open, so no other dial can take its room */
+    private static void startPeer(BitTorrent torrent, BitPeer peer) {
+        synchronized (clientLock) {
+            // inbound peers may have taken the room while it was dialed
+            if (numPeers.get() >= maxPeers) {
+                logDebug("at " + maxPeers + " peers, dropping " + peer.getIP());
+                peer.close();
+                torrent.forgetPeer(new InetSocketAddress(peer.getIP(), peer.getPort()));
+                return;
+            }
+            if (peerExecutor != null) {
+                peer.startWriter(peerExecutor);
+            } else {
+                peer.startReader(selector);
+            }
+            torrent.addPeer(peer, true);
+        }
+        if (peerExecutor != null) {
+            peerExecutor.execute(() -> runPeer(torrent, peer));
+        }
+        synchronized (welcomeQ) {
+            welcomeQ.notifyAll();    // main loop no longer waiting for peers
+        }
+    }
+
+    /* hasTrackerPeers:  true if a tracker found peers not yet dialed */
+    private static boolean hasTrackerPeers() {
+        for (BitTorrent torrent : torrents) {
+            if (torrent.hasTrackerPeers()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /* hasPeerRoom:  true if the session may take on another peer */
+    /* dials connecting or handshaking count, as each may become a peer */
+    private static boolean hasPeerRoom() {
+        return numPeers.get() + dialer.getHalfOpen() < maxPeers;
+    }
+
+    /* peerDropped:  a torrent has dropped peer, so it no longer counts */
+    /* against the session's limit, or its address's */
+    /* caller holds clientLock */
+    static void peerDropped(BitPeer peer) {
+        numPeers.decrementAndGet();
+        if (peer.isInbound()) {
+            welcomer.release(peer.getIP());
+        }
+    }
+
+    /* routeHandshake:  find the torrent an incoming handshake asks for */
+    /* called on the welcomer thread; byInfoHash is fixed after initClient */
+    /* return null if it is malformed or for a torrent we do not serve */
+    private static BitTorrent routeHandshake(byte[] handshake) {
+        BitTorrent torrent = byInfoHash.get(ByteBuffer.wrap(BitPeer.getInfoHash(handshake)));
+        if (torrent == null
+                || !BitPeer.matchesHandshake(handshake, torrent.getHandshakeTemplate())) {
+            return null;
+        }
+        return torrent;
+    }
+
+    /* runPeer:  serve one peer on the calling thread; an outbound peer */
+    /* comes handshaken and added by startPeer, and an inbound one with */
+    /* its handshake read by the welcomer */
+    /* used by the thread engine; blocks until the connection is lost */
+    private static void runPeer(BitTorrent torrent, BitPeer peer) {
+        try {
+            if (peer.isInbound()) {
+                peer.startWriter(peerExecutor);
+                synchronized (clientLock) {
+                    torrent.welcomePeer(peer);
+                }
+                synchronized (welcomeQ) {
+                    welcomeQ.notifyAll();    // main loop no longer waiting for peers
+                }
+            }
+
+            // read and process each message on this peer's own thread
+            peer.runReader(blockPool, msg -> {
+                peer.awaitSendRoom();
+                synchronized (clientLock) {
+                    if (peer.isClosed()) {
+                        msg.release();    // the main loop may have dropped it
+                        return;
+                    }
+                    torrent.processMessage(peer, msg);
+                    torrent.updatePeer(peer);
+                }
+            });
+        } finally {
+            // closed even if the peer's input made the reader throw
+            peer.close();
+            workSignal.signal();
+        }
+    }
+
     /* sendMessage:  send a BitMessage to the specified peer */
     public static void sendMessage(BitPeer peer, BitMessage msg) {
-        byte[] packedMsg = msg.pack();
-        peer.write(packedMsg, 0, packedMsg.length);
+        peer.send(msg);
+        messagesSent[msg.getType().ordinal()].inc();
+        if (!isDebug()) {
+            return;
+        }
         // log sent message event
         StringBuilder sb = new StringBuilder();
         sb.append(BitLibrary.getTimeString()).append(": SENT ").append(msg.getType());
@@ -313,18 +366,30 @@ public class BitClient {
             sb.append(" FOR ").append(msg.getIndex());
         }
         sb.append(" TO ").append(peer.getIP());
-        logOutput(sb.toString());
+        logDebug(sb.toString());
     }
 
-    /* parseArgs:  create saveFile for writing, get torrent metadata */
+    /* parseArgs:  get session settings and the .torrent file of each */
+    /* torrent to serve */
     /* return -1 on failure and 0 otherwise */
     public static int parseArgs(String[] args) {
-        peerList = new ArrayList<>();
-        if (args.length % 2 == 0
-                || BitLibrary.hasStr(args, "-h")) {
-            logError("usage: java BitClient [FLAGS]* torrentFile");
+        int i = 0;
+        while (i + 1 < args.length && args[i].startsWith("-")) {
+            i += 2;    // flags come in pairs, before the torrent files
+        }
+        if (i == args.length || BitLibrary.hasStr(args, "-h")) {
+            logError("usage: java BitClient [FLAGS]* torrentFile+");
             logError("\t-h         \t Usage information");
-            logError("\t-s saveFile\t Specify save location");
+            logError("\t-i seconds \t Drop peers silent this long (default 180)");
+            logError("\t-l level   \t Log level [error|info|debug]");
+            logError("\t-c [on|off]\t Check existing data against its hashes");
+            logError("\t-m [on|off]\t Memory-map the file to transfer");
+            logError("\t-n peers   \t Most peers, over all torrents (default 200)");
+            logError("\t-o port    \t Serve metrics on 127.0.0.1:port/metrics");
+            logError("\t-e engine  \t Peer I/O engine [nio|thread]");
+            logError("\t-s saveFile\t Specify save location (one torrent only)");
+            logError("\t-t threads \t Thread engine threads [platform|virtual]");
+            logError("\t-u slots   \t Peers to upload to at once (default 4)");
             logError("\t-p IP:port \t Include this address as a peer");
             logError("\t-v [on|off]\t Verbose on/off");
             logError("\t-w port    \t Welcome socket port number");
@@ -332,12 +397,64 @@ public class BitClient {
             logError("\t-z slow    \t Run in slow motion for testing");
             return -1;
         }
+        int numFlags = i;
 
-        for (int i = 0; i < args.length - 1; i += 2) {
+        for (i = 0; i < numFlags; i += 2) {
             switch (args[i]) {
+                case "-c":
+                    checkOnStart = args[i + 1].equals("on");
+                    break;
+                case "-e":
+                    engine = args[i + 1];
+                    if (!engine.equals("nio") && !engine.equals("thread")) {
+                        logError("error: unknown engine " + engine);
+                        return -1;
+                    }
+                    break;
+                case "-i":
+                    try {
+                        idleTimeout = Long.parseLong(args[i + 1]) * 1000;
+                    } catch (NumberFormatException ex) {
+                        idleTimeout = -1;
+                    }
+                    if (idleTimeout <= 0) {
+                        logError("error: invalid idle timeout " + args[i + 1]);
+                        return -1;
+                    }
+                    break;
+                case "-l":
+                    try {
+                        Log.setLevel(Log.Level.valueOf(args[i + 1].toUpperCase()));
+                    } catch (IllegalArgumentException ex) {
+                        logError("error: unknown log level " + args[i + 1]);
+                        return -1;
+                    }
+                    break;
+                case "-m":
+                    useMappedStorage = args[i + 1].equals("on");
+                    break;
+                case "-n":
+                    try {
+                        maxPeers = Integer.parseInt(args[i + 1]);
+                    } catch (NumberFormatException ex) {
+                        maxPeers = -1;
+                    }
+                    if (maxPeers < 1) {
+                        logError("error: invalid peer limit " + args[i + 1]);
+                        return -1;
+                    }
+                    break;
                 case "-s":
                     savePath = args[i + 1];
                     break;
+                case "-o":
+                    try {
+                        metricsPort = Integer.parseInt(args[i + 1]);
+                    } catch (NumberFormatException ex) {
+                        logError("error: invalid metrics port " + args[i + 1]);
+                        return -1;
+                    }
+                    break;
                 case "-p":
                     // add a peer to the list
                     InetAddress peerAddr;
@@ -349,16 +466,37 @@ public class BitClient {
 
                         peerAddr = InetAddress.getByName(ipString);
                         peerPort = Integer.parseInt(portString);
-                        peerList.add(new BitPeer(peerAddr, peerPort));
-                    } catch (UnknownHostException | NumberFormatException ex) {
+                        peerAddrs.add(new InetSocketAddress(peerAddr, peerPort));
+                    } catch (UnknownHostException | NumberFormatException
+                             | IndexOutOfBoundsException ex) {
                         logError("error: unknown IP:port " + args[i + 1]);
                         return -1;
                     }
                     logDebug("Added Peer: IP = " + peerAddr + ", "
                             + "Port = " + peerPort);
                     break;
+                case "-t":
+                    if (!args[i + 1].equals("platform")
+                            && !args[i + 1].equals("virtual")) {
+                        logError("error: unknown thread kind " + args[i + 1]);
+                        return -1;
+                    }
+                    useVirtualThreads = args[i + 1].equals("virtual");
+                    break;
+                case "-u":
+                    try {
+                        maxUnchoked = Integer.parseInt(args[i + 1]);
+                    } catch (NumberFormatException ex) {
+                        maxUnchoked = -1;
+                    }
+                    if (maxUnchoked < 1) {
+                        logError("error: invalid upload slots " + args[i + 1]);
+                        return -1;
+                    }
+                    break;
                 case "-v":
-                    _DEBUG = args[i + 1].equals("on");
+                    Log.setLevel(args[i + 1].equals("on") ? Log.Level.DEBUG
+                                                          : Log.Level.INFO);
                     break;
                 case "-w":
                     try {
@@ -377,170 +515,172 @@ public class BitClient {
                     break;
             }
         }
-        /* read torrent file data */
-        try {
-            String torrentName = TRNT_DIR + args[args.length - 1];
-            byte[] torrentData = Files.readAllBytes(Paths.get(torrentName));
-            encoded = new String(torrentData, StandardCharsets.US_ASCII);
-            encoded = encoded.trim();
-        } catch (IOException ex) {
-            logError("error: cannot open " + args[args.length - 1]);
+        torrentNames.addAll(Arrays.asList(args).subList(numFlags, args.length));
+        if (savePath != null && torrentNames.size() > 1) {
+            logError("error: -s names the save location of a single torrent");
             return -1;
         }
-
         return 0;
     }
 
-    /* initClient: parse file metadata from METAINFO */
+    /* initClient:  read and set up each torrent, then the shared disk, */
+    /* peer I/O and welcomer threads */
     /* return: 0 on success, -1 on failure */
-    /* success ==> initialized: fileLength, pieceLength, saveBuf, pieces */
     public static int initClient() {
-        BObject[] metainfo = BDecoder.read(encoded);
-        if (metainfo.length != 1) {
-            logError("error: invalid .torrent file");
-            return -1;
-        }
-        BDict metaDict = (BDict) metainfo[0];
-        // (a) parse the info dictionary within metaDict
-        if (metaDict.containsKey("info")) {
-            BDict infoDict = (BDict) metaDict.get("info");
-            infoBencoded = infoDict.encode();
-
-            // (i) length field
-            BObject len = infoDict.get("length");
-            if (len == null) {
-                logError("error: invalid length in .torrent file");
-                return -1;
-            }
-            fileLength = Integer.parseInt(len.print());
-            logDebug("got fileLength " + fileLength);
-
-            // (ii) piece length field
-            BObject plen = infoDict.get("piece length");
-            if (plen == null) {
-                logError("error: invalid piece length in .torrent file");
-                return -1;
-            }
-            pieceLength = Integer.parseInt(plen.print());
-            logDebug("got pieceLength " + pieceLength);
-            numPieces = fileLength / pieceLength;
-            if (fileLength % pieceLength > 0) {
-                ++numPieces;
-            }
-            logDebug("got numPieces " + numPieces);
+        workSignal = new BitSignal();
+        diskIO = new BitDiskIO(DISK_THREADS, MAX_DISK_BYTES, workSignal);
+        diskIO.start();
+        verifyPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        dialer = new BitDialer(MAX_HALF_OPEN, BitClient::hasPeerRoom,
+                new BitDialer.Listener() {
+                    @Override
+                    public void connected(BitTorrent torrent, BitPeer peer) {
+                        startPeer(torrent, peer);
+                    }
 
-            // (iii) suggested save name field ==> save at DNLD_DIR/<sug_name>
-            BObject sname = infoDict.get("name");
-            if (sname != null && savePath == null) {    // -s flag not used
-                savePath = DNLD_DIR + sname.print();
-                logDebug("got savePath " + savePath);
-            }
+                    @Override
+                    public void failed(BitTorrent torrent, InetSocketAddress addr) {
+                        synchronized (clientLock) {
+                            torrent.forgetPeer(addr);
+                        }
+                    }
+                });
+        dialer.start();
 
-            // (iv) SHA1 values for pieces
-            BObject sha = infoDict.get("pieces");
-            if (sha == null) {
-                logError("error: invalid SHA1 encoding of pieces");
+        // the session's upload slots are split evenly between its torrents
+        int slots = Math.max(1, maxUnchoked / torrentNames.size());
+        for (String name : torrentNames) {
+            byte[] encoded;
+            try {
+                encoded = Files.readAllBytes(Paths.get(TRNT_DIR + name));
+            } catch (IOException ex) {
+                logError("error: cannot open " + name);
                 return -1;
             }
-            String piecesSHA1 = sha.print();
-            if (piecesSHA1.length() % SHA_LENGTH != 0) {
-                logError("error: SHA1 length not divisible by 20");
+            String tag = (torrentNames.size() > 1) ? "[" + name + "] " : "";
+            BitTorrent torrent = new BitTorrent(name, encoded, savePath, isSeeder,
+                    slots, tag);
+            if (torrent.init(checkOnStart, useMappedStorage) == -1) {
                 return -1;
-            } else {
-                // split the SHA1 hashes into arrayList
-                // SHA1 of pieces
-                String[] pieces = new String[piecesSHA1.length() / SHA_LENGTH];
-                for (int i = 0; i < pieces.length; ++i) {
-                    String s = piecesSHA1.substring(SHA_LENGTH * i,
-                            SHA_LENGTH * (i + 1));
-                    byte[] hashData;
-                    hashData = s.getBytes(StandardCharsets.UTF_8);
-                    pieces[i] = BitLibrary.bytesToHex(hashData);
-                }
-                if (_DEBUG) {
-                    logDebug("Got the following SHA1 pieces:");
-                    if (_DEBUG) {
-                        for (String piece : pieces) {
-                            logDebug(piece);
-                        }
-                    }
-                }
             }
-
-            // (v) bitfield
-            localBitfield = new boolean[numPieces];
-            if (isSeeder) {
-                logDebug("I AM A SEEDER");
+            if (byInfoHash.putIfAbsent(ByteBuffer.wrap(torrent.getInfoHash()),
+                                       torrent) != null) {
+                logError("error: " + name + " is already in the session");
+                return -1;
             }
-            // all true if seeder, else false
-            Arrays.fill(localBitfield, isSeeder);
-        } else {
-            logError("error: no info field specified in .torrent file");
+            torrents.add(torrent);
+        }
+        if (initMetrics() == -1) {
             return -1;
         }
-        // (b) get tracker URL
-        BObject tracker = metaDict.get("announce");
-        if (tracker != null) {
-            trackerURL = tracker.print();
+        Runtime.getRuntime().addShutdownHook(
+                new Thread(BitClient::shutdown, "BitShutdown"));
+
+        // set up peer I/O engine and welcomer thread
+        if (engine.equals("nio")) {
+            selector = new BitSelector(workSignal, blockPool);
+            selector.start();
+        } else if (useVirtualThreads) {
+            peerExecutor = Executors.newThreadPerTaskExecutor(
+                    Thread.ofVirtual().name("BitPeer-", 0).factory());
+        } else {
+            peerExecutor = Executors.newCachedThreadPool();
         }
-        logDebug("got tracker URL " + trackerURL);
-        // (c) initialize torrent file for reading/writing
-        if (savePath == null) {
-            logError("error: no save location specified");  // .torrent nor CLI
-            return -1;
+        welcomeQ = new LinkedList<>();
+        // admits new peers, for every torrent
+        welcomer = new BitWelcomer(welcomePort, welcomeQ, workSignal,
+                BitClient::routeHandshake, BitClient::hasPeerRoom);
+        welcomer.start();
+        metrics.gauge("bt_inbound_pending", "",
+                "Inbound connections waiting on a handshake", () -> welcomer.getPending());
+        metrics.counter("bt_inbound_refused_total", "",
+                "Inbound connections closed before admission", welcomer.getRefused());
+        for (BitTorrent torrent : torrents) {
+            torrent.startTracker(welcomePort);
         }
-        if (isSeeder) {
-            // change to UPLD_DIR for a seeder
-            savePath = savePath.substring(savePath.lastIndexOf('/') + 1);
-            savePath = UPLD_DIR + savePath;
-            logDebug("Seeder now has savePath = " + savePath);
-            // make sure file exists and has proper length
-            File source = new File(savePath);
-            if (!source.isFile()) {
-                logError("error: seeder does not have " + savePath);
-                return -1;
-            } else if (source.length() != fileLength) {
-                logError("error: file length differs from torrent file specs");
-                return -1;
-            }
+
+        return 0;
+    }
+
+    /* initMetrics:  export the session's gauges through JMX and, if asked */
+    /* for with -o, over HTTP on the loopback address; each torrent */
+    /* exports its own, labeled with its name */
+    /* return 0 on success, -1 if the HTTP port cannot be opened */
+    private static int initMetrics() {
+        metrics.gauge("bt_disk_queue_bytes", "",
+                "Bytes of disk jobs queued or running", () -> diskIO.getQueuedBytes());
+        metrics.gauge("bt_session_peers", "", "Connected peers", () -> numPeers.get());
+        metrics.gauge("bt_dials_half_open", "",
+                "Outbound connections connecting or handshaking", () -> dialer.getHalfOpen());
+        metrics.gauge("bt_dials_queued", "",
+                "Outbound connections waiting to be tried", () -> dialer.getQueued());
+        metrics.gauge("bt_block_pool_hits", "",
+                "PIECE blocks read into a pooled buffer", () -> blockPool.getHits());
+        metrics.gauge("bt_block_pool_misses", "",
+                "PIECE blocks read into an unpooled buffer", () -> blockPool.getMisses());
+        metrics.gauge("bt_block_pool_in_use", "",
+                "Pooled buffers holding a block", () -> blockPool.getInUse());
+        try {
+            metrics.registerMBean("beaver.bittorrent:type=BitClient,port=" + welcomePort);
+        } catch (JMException ex) {
+            logError("warning: metrics not exported through JMX: " + ex.getMessage());
+        }
+        if (metricsPort > 0) {
             try {
-                file = new RandomAccessFile(source, "r");
-                logDebug("Seeder opened file at " + source);
+                new MetricsServer(metrics, metricsPort).start();
             } catch (IOException ex) {
-                logError("error: seeder could not open " + savePath);
+                logError("error: could not serve metrics on port " + metricsPort);
                 return -1;
             }
-        } else {
+            logOutput(BitLibrary.getTimeString() + ": METRICS AT http://127.0.0.1:"
+                    + metricsPort + "/metrics");
+        }
+        return 0;
+    }
+
+    /* shutdown:  shutdown hook announcing "stopped" to the trackers and */
+    /* recording each download's state */
+    private static void shutdown() {
+        List<Thread> trackers = new ArrayList<>();
+        for (BitTorrent torrent : torrents) {
+            Thread tracker = torrent.stopTracker();
+            if (tracker != null) {
+                trackers.add(tracker);
+            }
+        }
+        diskIO.stop(5000);    // no writes after the files' mtimes are saved
+        synchronized (clientLock) {
+            for (BitTorrent torrent : torrents) {
+                torrent.saveResumeOnExit();
+            }
+        }
+        long deadline = System.currentTimeMillis() + 3000;
+        for (Thread tracker : trackers) {
             try {
-                file = new RandomAccessFile(savePath, "rw");
-                file.setLength(fileLength);
-                logDebug("Leecher opened new file at " + savePath);
-            } catch (IOException ex) {
-                logError("error: client could not open " + savePath);
-                return -1;
+                tracker.join(Math.max(1, deadline - System.currentTimeMillis()));
+            } catch (InterruptedException ignored) {
             }
         }
-
-        // (d) set up welcomer thread
-        welcomeQ = new LinkedList<>();
-        // welcomes new peers
-        BitWelcomer welcomer = new BitWelcomer(welcomePort, welcomeQ);
-        welcomer.start();
-
-        return 0;
+        // hooks run at once, so Log's own may be done; write out the lines
+        // logged while stopping
+        Log.flush();
     }
 
+    /* logging goes through Log's background writer; callers building */
+    /* a costly line check isDebug() first */
     public static void logError(String str) {
-        System.err.println(str);
+        Log.error(str);
     }
 
     public static void logDebug(String str) {
-        if (_DEBUG) {
-            System.err.println(str);
-        }
+        Log.debug(str);
     }
 
     public static void logOutput(String str) {
-        System.out.println(str);
+        Log.info(str);
+    }
+
+    public static boolean isDebug() {
+        return Log.isEnabled(Log.Level.DEBUG);
     }
 }
@@ -0,0 +1,187 @@
+/* BitCodec.java:  flyweight encoding and decoding of BitTorrent messages */
+/* Christopher Chute */
+
+/* a BitCodec is wrapped around a message in place, at its length prefix, */
+/* and reads its fields straight out of the buffer as primitives; nothing */
+/* is copied and no Strings are built. the static encoders write messages */
+/* into a buffer supplied by the caller */
+
+import util.lib.Bitfield;
+
+import java.nio.ByteBuffer;
+
+public class BitCodec {
+    public static final int INT_LEN = 4;
+    public static final int PIECE_PREFIX = 2 * INT_LEN + 1;  // id, index, begin
+    /* MAX_LENGTH:  longest message accepted from a peer; holds a 128 KiB */
+    /* block, or the BITFIELD of a torrent of a million pieces */
+    public static final int MAX_LENGTH = PIECE_PREFIX + 128 * 1024;
+
+    /* message IDs as sent on the wire by this client ('0' to '8') */
+    public static final byte CHOKE_ID = '0';
+    public static final byte UNCHOKE_ID = '1';
+    public static final byte INTERESTED_ID = '2';
+    public static final byte UNINTERESTED_ID = '3';
+    public static final byte HAVE_ID = '4';
+    public static final byte BITFIELD_ID = '5';
+    public static final byte REQUEST_ID = '6';
+    public static final byte PIECE_ID = '7';
+    public static final byte CANCEL_ID = '8';
+
+    /* TYPES:  MessageType of each ID, indexed by (ID - CHOKE_ID) */
+    private static final BitMessage.MessageType[] TYPES = {
+        BitMessage.MessageType.CHOKE,
+        BitMessage.MessageType.UNCHOKE,
+        BitMessage.MessageType.INTERESTED,
+        BitMessage.MessageType.UNINTERESTED,
+        BitMessage.MessageType.HAVE,
+        BitMessage.MessageType.BITFIELD,
+        BitMessage.MessageType.REQUEST,
+        BitMessage.MessageType.PIECE,
+        BitMessage.MessageType.CANCEL
+    };
+    /* MIN_LENGTHS:  smallest valid message length of each ID */
+    private static final int[] MIN_LENGTHS = {
+        1, 1, 1, 1, 1 + INT_LEN, 1, 1 + 3 * INT_LEN, PIECE_PREFIX, 1 + 3 * INT_LEN
+    };
+
+    private ByteBuffer buf = null;    // buffer holding the wrapped message
+    private int base = 0;             // position of its length prefix
+    private int len = 0;              // message length after the prefix
+
+    /* wrap:  view the message whose length prefix is at buf's position */
+    /* buf's position is left unchanged */
+    public BitCodec wrap(ByteBuffer buf) {
+        this.buf = buf;
+        this.base = buf.position();
+        this.len = buf.getInt(base);
+        return this;
+    }
+
+    /* getLength:  message length, not counting the 4-byte prefix */
+    public int getLength() {
+        return len;
+    }
+
+    /* getFrameLength:  bytes of the whole message including the prefix */
+    public int getFrameLength() {
+        return INT_LEN + len;
+    }
+
+    /* getId:  the message ID byte (only valid if getLength() > 0) */
+    public byte getId() {
+        return buf.get(base + INT_LEN);
+    }
+
+    /* isValid:  true if the ID is known and the message is long enough */
+    public boolean isValid() {
+        if (len == 0) {
+            return true;
+        }
+        int i = getId() - CHOKE_ID;
+        return len > 0 && i >= 0 && i < TYPES.length && len >= MIN_LENGTHS[i];
+    }
+
+    public BitMessage.MessageType getType() {
+        if (len == 0) {
+            return BitMessage.MessageType.KEEP_ALIVE;
+        }
+        return TYPES[getId() - CHOKE_ID];
+    }
+
+    /* getIndex:  piece index of a HAVE, REQUEST, PIECE or CANCEL */
+    public int getIndex() {
+        return buf.getInt(base + INT_LEN + 1);
+    }
+
+    /* getBegin:  block offset of a REQUEST, PIECE or CANCEL */
+    public int getBegin() {
+        return buf.getInt(base + INT_LEN + 1 + INT_LEN);
+    }
+
+    /* getBlockLength:  block length of a REQUEST or CANCEL */
+    public int getBlockLength() {
+        return buf.getInt(base + INT_LEN + 1 + 2 * INT_LEN);
+    }
+
+    /* getBitfield:  slice of the bits of a BITFIELD */
+    public ByteBuffer getBitfield() {
+        return buf.slice(base + INT_LEN + 1, len - 1);
+    }
+
+    /* toMessage:  build the BitMessage for the wrapped message */
+    public BitMessage toMessage() {
+        if (!isValid()) {
+            throw new RuntimeException("Unpack found unrecognized message");
+        }
+        BitMessage.MessageType type = getType();
+        switch (type) {
+            case HAVE:
+                return new BitMessage(type, getIndex());
+            case BITFIELD:
+                // every wire bit for now; the client trims the pad bits
+                return new BitMessage(type, Bitfield.fromWire(getBitfield(),
+                                                              8 * (len - 1)));
+            case REQUEST:
+            case CANCEL:
+                return new BitMessage(type, getIndex(), getBegin(), getBlockLength());
+            case PIECE:
+                // both readers put blocks straight into pooled buffers
+                throw new RuntimeException("PIECE is not decoded by toMessage");
+            default:
+                return new BitMessage(type);
+        }
+    }
+
+    /* getTypeId:  wire ID of a message type, -1 for KEEP_ALIVE */
+    /* relies on MessageType listing KEEP_ALIVE first, then the IDs in order */
+    public static byte getTypeId(BitMessage.MessageType type) {
+        if (type == BitMessage.MessageType.KEEP_ALIVE) {
+            return -1;
+        }
+        return (byte) (CHOKE_ID + type.ordinal() - 1);
+    }
+
+    /* encodeKeepAlive:  {0000} */
+    public static void encodeKeepAlive(ByteBuffer dst) {
+        dst.putInt(0);
+    }
+
+    /* encodeStatus:  CHOKE, UNCHOKE, INTERESTED or UNINTERESTED */
+    public static void encodeStatus(ByteBuffer dst, byte id) {
+        dst.putInt(1);
+        dst.put(id);
+    }
+
+    public static void encodeHave(ByteBuffer dst, int index) {
+        dst.putInt(1 + INT_LEN);
+        dst.put(HAVE_ID);
+        dst.putInt(index);
+    }
+
+    /* encodeBitfield:  the bits go straight from the Bitfield's words */
+    public static void encodeBitfield(ByteBuffer dst, Bitfield bitfield) {
+        dst.putInt(1 + Bitfield.getWireLength(bitfield.size()));
+        dst.put(BITFIELD_ID);
+        bitfield.writeTo(dst);
+    }
+
+    /* encodeRequest:  REQUEST_ID or CANCEL_ID for a block */
+    public static void encodeRequest(ByteBuffer dst, byte id, int index,
+                                     int begin, int blockLength) {
+        dst.putInt(1 + 3 * INT_LEN);
+        dst.put(id);
+        dst.putInt(index);
+        dst.putInt(begin);
+        dst.putInt(blockLength);
+    }
+
+    /* encodePieceHeader:  head of a PIECE whose block is sent separately */
+    public static void encodePieceHeader(ByteBuffer dst, int index, int begin,
+                                         int blockLength) {
+        dst.putInt(PIECE_PREFIX + blockLength);
+        dst.put(PIECE_ID);
+        dst.putInt(index);
+        dst.putInt(begin);
+    }
+}
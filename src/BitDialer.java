@@ -0,0 +1,160 @@
+/* BitDialer.java:  connects to outbound peers, several at once */
+/* Christopher Chute */
+
+/* a fixed set of dialer threads take peers off a queue ordered by when */
+/* each may next be tried, so no more connections than there are threads */
+/* are ever half-open (connecting, or waiting on the peer's handshake) */
+/* and one slow or dead peer holds up only its own thread. a connect or */
+/* handshake that runs past its deadline fails, and a failed peer is */
+/* tried again after a backoff that doubles each time, up to MAX_ATTEMPTS. */
+/* a dial only starts while the session has room for one more peer, */
+/* counting those half-open, so dials wait their turn rather than overshoot */
+/* the peer limit */
+
+import java.net.InetSocketAddress;
+import java.util.PriorityQueue;
+import java.util.function.BooleanSupplier;
+
+public class BitDialer {
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    private static final int HANDSHAKE_TIMEOUT_MS = 10000;
+    private static final long RETRY_MS = 5000;      // first backoff
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long ROOM_WAIT_MS = 1000;  // recheck a full session
+
+    /* Listener:  told how each dial ends; called on a dialer thread */
+    public interface Listener {
+        /* connected:  peer is connected and handshaken */
+        void connected(BitTorrent torrent, BitPeer peer);
+
+        /* failed:  addr could not be reached */
+        void failed(BitTorrent torrent, InetSocketAddress addr);
+    }
+
+    /* Dial:  one peer to connect to for a torrent */
+    private static class Dial {
+        private final BitTorrent torrent;
+        private final InetSocketAddress addr;
+        private int attempts = 0;
+        private long notBefore;                   // ms
+
+        private Dial(BitTorrent torrent, InetSocketAddress addr, long notBefore) {
+            this.torrent = torrent;
+            this.addr = addr;
+            this.notBefore = notBefore;
+        }
+    }
+
+    private final PriorityQueue<Dial> dialQ       // soonest first
+            = new PriorityQueue<>((a, b) -> Long.compare(a.notBefore, b.notBefore));
+    private final Listener listener;
+    private final BooleanSupplier hasRoom;        // false at the peer limit,
+                                                  // counting dials half-open
+    private final Thread[] workers;
+    private int numHalfOpen = 0;                  // guarded by this
+    private volatile boolean isStopped = false;
+
+    public BitDialer(int maxHalfOpen, BooleanSupplier hasRoom, Listener listener) {
+        this.hasRoom = hasRoom;
+        this.listener = listener;
+        this.workers = new Thread[maxHalfOpen];
+        for (int i = 0; i < maxHalfOpen; ++i) {
+            workers[i] = new Thread(this::run, "BitDialer-" + i);
+            workers[i].setDaemon(true);
+        }
+    }
+
+    public void start() {
+        for (Thread worker : workers) {
+            worker.start();
+        }
+    }
+
+    public synchronized void stop() {
+        isStopped = true;
+        notifyAll();
+    }
+
+    /* submit:  connect to addr for torrent as soon as a thread is free */
+    public synchronized void submit(BitTorrent torrent, InetSocketAddress addr) {
+        dialQ.offer(new Dial(torrent, addr, System.currentTimeMillis()));
+        notifyAll();
+    }
+
+    /* getQueued:  dials waiting for a thread or a retry */
+    public synchronized int getQueued() {
+        return dialQ.size();
+    }
+
+    /* getHalfOpen:  dials connecting or handshaking now */
+    public synchronized int getHalfOpen() {
+        return numHalfOpen;
+    }
+
+    /* getPending:  dials queued or under way, each a possible peer */
+    public synchronized int getPending() {
+        return dialQ.size() + numHalfOpen;
+    }
+
+    /* run:  dial peers as they come due */
+    private void run() {
+        Dial dial;
+        while ((dial = take()) != null) {
+            boolean isRetry = false;
+            try {
+                isRetry = attempt(dial);
+            } finally {
+                synchronized (this) {
+                    --numHalfOpen;
+                    if (isRetry) {
+                        dialQ.offer(dial);
+                        notifyAll();
+                    }
+                }
+            }
+        }
+    }
+
+    /* take:  wait for the next dial that is due and has room; null once */
+    /* stopped. no peer drop wakes the dialer, so a full session is */
+    /* rechecked every ROOM_WAIT_MS */
+    private synchronized Dial take() {
+        while (!isStopped) {
+            Dial dial = dialQ.peek();
+            long now = System.currentTimeMillis();
+            long waitMs = (dial == null) ? 0 : dial.notBefore - now;
+            if (dial != null && dial.notBefore <= now) {
+                if (hasRoom.getAsBoolean()) {
+                    ++numHalfOpen;    // counts against the limit from here
+                    return dialQ.poll();
+                }
+                waitMs = ROOM_WAIT_MS;
+            }
+            try {
+                wait(waitMs);
+            } catch (InterruptedException ignored) {
+            }
+        }
+        return null;
+    }
+
+    /* attempt:  connect and handshake once, and report the outcome */
+    /* return true if the dial should be tried again later */
+    private boolean attempt(Dial dial) {
+        BitPeer peer = new BitPeer(dial.addr.getAddress(), dial.addr.getPort());
+        dial.torrent.setCounters(peer);
+        ++dial.attempts;
+        if (dial.torrent.connectPeer(peer, CONNECT_TIMEOUT_MS, HANDSHAKE_TIMEOUT_MS) == 0) {
+            listener.connected(dial.torrent, peer);
+            return false;
+        }
+        peer.close();
+        if (dial.attempts >= MAX_ATTEMPTS || isStopped) {
+            listener.failed(dial.torrent, dial.addr);
+            return false;
+        }
+        dial.notBefore = System.currentTimeMillis()
+                + (RETRY_MS << (dial.attempts - 1));
+        return true;
+    }
+}
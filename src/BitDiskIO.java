@@ -0,0 +1,209 @@
+/* BitDiskIO.java:  disk stage between the network loop and PieceStorage */
+/* Christopher Chute */
+
+/* write and flush jobs are queued here and served by a few worker threads, */
+/* so a slow disk never stalls message handling. each worker takes every */
+/* queued job at once, sorts them by offset and writes runs of adjacent */
+/* blocks with one gathering write. finished jobs wait on a completion */
+/* queue until the client loop runs their callbacks via runCompletions() */
+
+/* the queue is bounded by bytes: submit never blocks (the network loop */
+/* must not), but callers stop requesting blocks while hasRoom() is false */
+
+/* one BitDiskIO serves every torrent of a session: each job names its */
+/* storage, and runs are only gathered from jobs on the same storage, so */
+/* the byte limit is a budget shared by all of them */
+
+import util.storage.PieceStorage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+public class BitDiskIO {
+    private static final int MAX_RUN = 64;    // buffers per gathering write
+
+    private final BitSignal workSignal;       // wakes the client loop
+    private final long maxQueuedBytes;        // soft limit on queued jobs
+    private final ArrayList<Job> jobQ = new ArrayList<>();
+    private long queuedBytes = 0;             // bytes of queued + running jobs
+    private final ConcurrentLinkedQueue<Job> doneQ = new ConcurrentLinkedQueue<>();
+    private final Thread[] workers;
+    private volatile boolean isStopped = false;
+
+    /* Job:  one write or flush of a storage */
+    private static class Job {
+        private final Kind kind;
+        private final PieceStorage storage;
+        private final long offset;
+        private final ByteBuffer buf;         // data to write
+        private final int length;
+        private final Consumer<IOException> done;    // given null on success
+        private IOException error = null;
+
+        private Job(Kind kind, PieceStorage storage, long offset, ByteBuffer buf,
+                    Consumer<IOException> done) {
+            this.kind = kind;
+            this.storage = storage;
+            this.offset = offset;
+            this.buf = buf;
+            this.length = (buf == null) ? 0 : buf.remaining();
+            this.done = done;
+        }
+    }
+
+    private enum Kind { WRITE, FLUSH }
+
+    public BitDiskIO(int numWorkers, long maxQueuedBytes, BitSignal workSignal) {
+        this.maxQueuedBytes = maxQueuedBytes;
+        this.workSignal = workSignal;
+        this.workers = new Thread[numWorkers];
+        for (int i = 0; i < numWorkers; ++i) {
+            workers[i] = new Thread(this::runWorker, "BitDiskIO-" + i);
+            workers[i].setDaemon(true);
+        }
+    }
+
+    public void start() {
+        for (Thread worker : workers) {
+            worker.start();
+        }
+    }
+
+    /* stop:  have the workers quit after the jobs they are running, and */
+    /* wait up to timeoutMs for them; queued jobs are dropped */
+    public void stop(long timeoutMs) {
+        synchronized (this) {
+            isStopped = true;
+            notifyAll();
+        }
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        for (Thread worker : workers) {
+            try {
+                worker.join(Math.max(1, deadline - System.currentTimeMillis()));
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /* submitWrite:  write all of src to storage at offset, then call done */
+    /* src must not be touched until done runs */
+    public void submitWrite(PieceStorage storage, long offset, ByteBuffer src,
+                            Consumer<IOException> done) {
+        submit(new Job(Kind.WRITE, storage, offset, src, done));
+    }
+
+    /* submitFlush:  force storage's written data to the device, then call */
+    /* done; only covers writes that completed before it was submitted */
+    public void submitFlush(PieceStorage storage, Consumer<IOException> done) {
+        submit(new Job(Kind.FLUSH, storage, Long.MAX_VALUE, null, done));
+    }
+
+    private synchronized void submit(Job job) {
+        jobQ.add(job);
+        queuedBytes += job.length;
+        notify();
+    }
+
+    /* getQueuedBytes:  bytes of jobs queued or running */
+    public synchronized long getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    /* hasRoom:  false while queued jobs are over their byte limit */
+    public synchronized boolean hasRoom() {
+        return queuedBytes < maxQueuedBytes;
+    }
+
+    /* runCompletions:  run the callbacks of finished jobs on the caller's */
+    /* thread, e.g., the client loop holding clientLock */
+    /* return the number of callbacks run */
+    public int runCompletions() {
+        int n = 0;
+        Job job;
+        while ((job = doneQ.poll()) != null) {
+            ++n;
+            job.done.accept(job.error);
+        }
+        return n;
+    }
+
+    /* runWorker:  take all queued jobs, serve them in offset order, and */
+    /* hand them back for completion */
+    private void runWorker() {
+        ArrayList<Job> batch = new ArrayList<>();
+        ByteBuffer[] run = new ByteBuffer[MAX_RUN];
+        while (true) {
+            synchronized (this) {
+                while (!isStopped && jobQ.isEmpty()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                }
+                if (isStopped) {
+                    return;
+                }
+                batch.addAll(jobQ);
+                jobQ.clear();
+            }
+            // group each storage's jobs together, in offset order
+            batch.sort(Comparator.<Job>comparingInt(job -> System.identityHashCode(job.storage))
+                    .thenComparingLong(job -> job.offset));
+
+            long numBytes = 0;
+            int i = 0;
+            while (i < batch.size()) {
+                Job job = batch.get(i);
+                numBytes += job.length;
+                if (job.kind == Kind.WRITE) {
+                    // gather the run of writes adjacent to this one
+                    int n = 0;
+                    long end = job.offset;
+                    int j = i;
+                    while (j < batch.size() && n < MAX_RUN
+                            && batch.get(j).kind == Kind.WRITE
+                            && batch.get(j).storage == job.storage
+                            && batch.get(j).offset == end) {
+                        run[n++] = batch.get(j).buf;
+                        end += batch.get(j).length;
+                        ++j;
+                    }
+                    try {
+                        job.storage.write(job.offset, run, 0, n);
+                    } catch (IOException ex) {
+                        for (int k = i; k < j; ++k) {
+                            batch.get(k).error = ex;
+                        }
+                    }
+                    for (int k = i + 1; k < j; ++k) {
+                        numBytes += batch.get(k).length;
+                    }
+                    Arrays.fill(run, 0, n, null);
+                    i = j;
+                    continue;
+                }
+                try {
+                    job.storage.flush();
+                } catch (IOException ex) {
+                    job.error = ex;
+                }
+                ++i;
+            }
+
+            doneQ.addAll(batch);
+            batch.clear();
+            synchronized (this) {
+                queuedBytes -= numBytes;
+            }
+            workSignal.signal();
+        }
+    }
+}
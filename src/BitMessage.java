@@ -1,8 +1,10 @@
 /* BitMessage.java:  for constructing and parsing BitTorrent messages */
 /* Christopher Chute */
 
+import util.lib.Bitfield;
+import util.lib.PooledBuffer;
+
 import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
 
 public class BitMessage {
     private static final int INTEGER_LENGTH = 4;
@@ -11,8 +13,9 @@ public class BitMessage {
     private int blockLength = -1;  // length of a requested block
     private int index = -1;        // index of piece containing requested block
     private int begin = -1;        // offset within piece of a requested block
-    private byte[] block = null;   // block data itself, contiguous subset of a piece
-    private byte[] bitfield = null;// for bitfield message
+    private ByteBuffer block = null;    // block data itself, contiguous subset of a piece
+    private PooledBuffer blockRef = null; // pooled buffer holding block, if any
+    private Bitfield bitfield = null;// for bitfield message
 
     /* MessageType: all possible message types in client protocol */
     public enum MessageType {
@@ -40,8 +43,8 @@ public class BitMessage {
         this.index = index;
     }
 
-    /* BitMessage(MessageType, byte[]): constructor for a BITFIELD message */
-    public BitMessage(MessageType type, byte[] bitfield) {
+    /* BitMessage(MessageType, Bitfield): constructor for a BITFIELD message */
+    public BitMessage(MessageType type, Bitfield bitfield) {
         this.type = type;
         this.bitfield = bitfield;
     }
@@ -55,13 +58,14 @@ public class BitMessage {
         this.blockLength = blockLength;
     }
 
-    /* BitMessage(MessageType, int, int, byte[]): block transfer msgs */
-    /* MessageType: PIECE */
-    public BitMessage(MessageType type, int index, int begin, byte[] block) {
+    /* BitMessage(MessageType, int, int, PooledBuffer): received PIECE whose */
+    /* block was read into a pooled buffer; the message owns one reference */
+    public BitMessage(MessageType type, int index, int begin, PooledBuffer block) {
         this.type = type;
         this.index = index;
         this.begin = begin;
-        this.block = block;
+        this.block = block.buffer();
+        this.blockRef = block;
     }
 
     public MessageType getType() {
@@ -80,158 +84,79 @@ public class BitMessage {
         return blockLength;
     }
 
-    public byte[] getBlock() {
+    /* getBlock:  a view of the block, positioned at its first byte */
+    public ByteBuffer getBlock() {
         if (type != MessageType.PIECE) {
             throw new RuntimeException("error: getBlock called on non-PIECE");
         }
-        return block;
+        return block.duplicate();
     }
 
-    public byte[] getBitfield() {
+    /* release:  return a pooled block once the message is done with */
+    public void release() {
+        if (blockRef != null) {
+            blockRef.release();
+            blockRef = null;
+        }
+    }
+
+
+    public Bitfield getBitfield() {
         if (type != MessageType.BITFIELD) {
             throw new RuntimeException("error: getBitfield called on non-BITFIELD");
         }
         return bitfield;
     }
 
+    /* getPackedLength:  bytes this message takes on the wire */
+    public int getPackedLength() {
+        return switch (type) {
+            case KEEP_ALIVE -> INTEGER_LENGTH;
+            case HAVE -> 2 * INTEGER_LENGTH + 1;
+            case BITFIELD -> INTEGER_LENGTH + 1
+                    + Bitfield.getWireLength(bitfield.size());
+            case REQUEST, CANCEL -> 4 * INTEGER_LENGTH + 1;
+            case PIECE -> 3 * INTEGER_LENGTH + 1 + block.remaining();
+            default -> INTEGER_LENGTH + 1;
+        };
+    }
+
     /* pack: packs a message into a byte[] to send over network */
     public byte[] pack() {
-        ByteBuffer buf;
-
-        if (type == MessageType.KEEP_ALIVE) {                // {0000}
-            buf = ByteBuffer.allocate(INTEGER_LENGTH);
-            buf.putInt(0);
-        } else if (type == MessageType.CHOKE) {              // {0001, 0}
-            buf = ByteBuffer.allocate(INTEGER_LENGTH + 1);   
-            buf.putInt(1);                                   
-            buf.put("0".getBytes(StandardCharsets.US_ASCII));
-        } else if (type == MessageType.UNCHOKE) {            // {0001, 1}
-            buf = ByteBuffer.allocate(INTEGER_LENGTH + 1);
-            buf.putInt(1);
-            buf.put("1".getBytes(StandardCharsets.US_ASCII));
-        } else if (type == MessageType.INTERESTED) {
-            buf = ByteBuffer.allocate(INTEGER_LENGTH + 1);
-            buf.putInt(1);
-            buf.put("2".getBytes(StandardCharsets.US_ASCII));
-        } else if (type == MessageType.UNINTERESTED) {
-            buf = ByteBuffer.allocate(INTEGER_LENGTH + 1);
-            buf.putInt(1);
-            buf.put("3".getBytes(StandardCharsets.US_ASCII));
-        } else if (type == MessageType.HAVE) {
-            buf = ByteBuffer.allocate(2 * INTEGER_LENGTH + 1);
-            buf.putInt(INTEGER_LENGTH + 1);
-            buf.put("4".getBytes(StandardCharsets.US_ASCII));
-            buf.putInt(index);
-        } else if (type == MessageType.BITFIELD) {
-            if (bitfield == null) {
-                throw new RuntimeException("Uninitialized variables for bitfield");
-            }
-            buf = ByteBuffer.allocate(INTEGER_LENGTH + 1 + bitfield.length);
-            buf.putInt(1 + bitfield.length);
-            buf.put("5".getBytes(StandardCharsets.US_ASCII));
-            buf.put(bitfield, 0, bitfield.length);
-        } else if (type == MessageType.REQUEST) {
-            if (index == -1 || begin == -1 || blockLength == -1) {
-                throw new RuntimeException("Uninitialized variables for request");
-            }
-            buf = ByteBuffer.allocate(4 * INTEGER_LENGTH + 1);
-            buf.putInt(3 * INTEGER_LENGTH + 1);
-            buf.put("6".getBytes(StandardCharsets.US_ASCII));
-            buf.putInt(index);
-            buf.putInt(begin);
-            buf.putInt(blockLength);
-        } else if (type == MessageType.PIECE) {
-            if (index == -1 || begin == -1 || block == null) {
-                throw new RuntimeException("Uninitialized variables for piece");
+        ByteBuffer buf = ByteBuffer.allocate(getPackedLength());
+        pack(buf);
+        return buf.array();
+    }
+
+    /* pack: packs a message into dst, which must have getPackedLength() */
+    /* bytes remaining; PIECE is not packed, BitSendQueue sends its block */
+    /* straight from storage */
+    public void pack(ByteBuffer dst) {
+        switch (type) {
+            case KEEP_ALIVE -> BitCodec.encodeKeepAlive(dst);           // {0000}
+            case CHOKE, UNCHOKE, INTERESTED, UNINTERESTED ->            // {0001, id}
+                    BitCodec.encodeStatus(dst, BitCodec.getTypeId(type));
+            case HAVE -> BitCodec.encodeHave(dst, index);
+            case BITFIELD -> {
+                if (bitfield == null) {
+                    throw new RuntimeException("Uninitialized variables for bitfield");
+                }
+                BitCodec.encodeBitfield(dst, bitfield);
             }
-            buf = ByteBuffer.allocate(3 * INTEGER_LENGTH + 1 + block.length);
-            buf.putInt(2 * INTEGER_LENGTH + 1 + block.length);
-            buf.put("7".getBytes(StandardCharsets.US_ASCII));
-            buf.putInt(index);
-            buf.putInt(begin);
-            buf.put(block, 0, block.length);
-        } else if (type == MessageType.CANCEL) {
-            if (index == -1 || begin == -1 || blockLength == -1) {
-                throw new RuntimeException("Uninitialized variables for cancel");
+            case REQUEST, CANCEL -> {
+                if (index == -1 || begin == -1 || blockLength == -1) {
+                    throw new RuntimeException("Uninitialized variables for " + type);
+                }
+                BitCodec.encodeRequest(dst, BitCodec.getTypeId(type), index, begin,
+                                       blockLength);
             }
-            buf = ByteBuffer.allocate(4 * INTEGER_LENGTH + 1);
-            buf.putInt(3 * INTEGER_LENGTH + 1);
-            buf.put("8".getBytes(StandardCharsets.US_ASCII));
-            buf.putInt(index);
-            buf.putInt(begin);
-            buf.putInt(blockLength);
-        // NOTE: Full BitTorrent protocol has another PORT message type
-        } else {
-            throw new RuntimeException("Unrecognized BitMessage type: " + type);
+            // NOTE: Full BitTorrent protocol has another PORT message type
+            default -> throw new RuntimeException("Unrecognized BitMessage type: " + type);
         }
-
-        return buf.array();
     }
 
     /* unpack: turns received byte[] into the corresponding BitMessage */
     public static BitMessage unpack(byte[] message) {
-        ByteBuffer buf = ByteBuffer.wrap(message);
-        int len = buf.getInt();
-
-        // handle KEEP_ALIVE message
-        if (len == 0) {
-            return new BitMessage(MessageType.KEEP_ALIVE);
-        }
-
-        byte[] t = new byte[1];
-        buf.get(t, 0, 1);
-        String typeStr = new String(t, StandardCharsets.US_ASCII);
-
-        // handle status messages (CHOKE, UNCHOKE, INTERESTED, UNINTERESTED)
-        if (len == 1) {
-            return switch (typeStr) {
-                case "0" -> new BitMessage(MessageType.CHOKE);
-                case "1" -> new BitMessage(MessageType.UNCHOKE);
-                case "2" -> new BitMessage(MessageType.INTERESTED);
-                case "3" -> new BitMessage(MessageType.UNINTERESTED);
-                default -> throw new RuntimeException("Unpack found unrecognized len=1 msg");
-            };
-        }
-
-        // handle HAVE, BITFIELD, REQUEST, CANCEL, PIECE messages
-        switch (typeStr) {
-            case "4" -> {
-                int pieceIndex = buf.getInt();
-                return new BitMessage(MessageType.HAVE, pieceIndex);
-            }
-            case "5" -> {
-                byte[] bitMap = new byte[len - 1];
-                buf.get(bitMap, 0, len - 1);
-                return new BitMessage(MessageType.BITFIELD, bitMap);
-            }
-            case "6" -> {
-                int i = buf.getInt();    // index
-
-                int b = buf.getInt();    // begin
-
-                int l = buf.getInt();    // length
-
-                return new BitMessage(MessageType.REQUEST, i, b, l);
-            }
-            case "7" -> {
-                int i = buf.getInt();    // index
-
-                int b = buf.getInt();    // begin
-
-                byte[] blockData = new byte[len - 9];
-                buf.get(blockData, 0, len - 9);
-                return new BitMessage(MessageType.PIECE, i, b, blockData);
-            }
-            case "8" -> {
-                int i = buf.getInt();    // index
-
-                int b = buf.getInt();    // begin
-
-                int l = buf.getInt();    // length
-
-                return new BitMessage(MessageType.CANCEL, i, b, l);
-            }
-            default -> throw new RuntimeException("Unpack found unrecognized MessageType");
-        }
+        return new BitCodec().wrap(ByteBuffer.wrap(message)).toMessage();
     }
 }
@@ -4,29 +4,67 @@
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
 
 import util.lib.BitLibrary;
+import util.lib.Bitfield;
+import util.lib.BufferPool;
+import util.lib.Log;
+import util.lib.RateMeter;
+import util.lib.TimingWheel;
+import util.metrics.Counter;
+import util.storage.PieceStorage;
 
 public class BitPeer {
     private static final int HANDSHAKE_SIZE = 68;
+    private static final int PEER_ID_SIZE = 20;
+    private static final int INFO_HASH_SIZE = 20;
+    private static final int MSG_BACKLOG = 10;    // max outstanding messages
+    private static final int MIN_PIPELINE = 4;    // block requests in flight
+    private static final int MAX_PIPELINE = 256;
+    private static final long RATE_WINDOW_NS = 1_000_000_000L;
     private final InetSocketAddress peerAddrPort;
     // hex string of SHA1
     private final byte[] peerID;
-    private boolean[] remoteBitfield = null;
+    private Bitfield remoteBitfield = null;
     private Socket peerSocket = null;
+    private SocketChannel peerChannel = null;    // null for plain sockets
+    private SelectionKey selectionKey = null;    // set once non-blocking
+    private final boolean isInbound;             // connected to us
     private BufferedOutputStream outToPeer = null;
     private BufferedInputStream inFromPeer = null;
     private Queue<BitMessage> messageQ = null;
-
-    public HashSet<Integer> outstandingRequests;
+    private BitSendQueue sendQueue = null;       // set once handshaken
+    private volatile boolean isClosed = false;
+    private double downloadRate = 0;             // bytes/s, smoothed
+    private long rateBytes = 0;                  // bytes in current window
+    private long rateStart = System.nanoTime();  // start of current window
+    private long minRtt = Long.MAX_VALUE;        // best request RTT (ns)
+    private volatile long lastReceived = System.currentTimeMillis(); // any message
+    private volatile long lastSent = lastReceived;                   // anything queued
+    private TimingWheel.Timer<BitPeer> timer = null;  // keep-alive and idle checks
+
+    public ArrayList<BitPiece.Block> outstandingRequests;  // oldest first
+    private final RateMeter receiveMeter                  // PIECE data in
+            = new RateMeter(System.currentTimeMillis());
+    private final RateMeter sendMeter                     // PIECE data out
+            = new RateMeter(System.currentTimeMillis());
+    private Counter downloaded = new Counter();           // PIECE bytes in
+    private Counter uploaded = new Counter();             // PIECE bytes out
     public boolean localIsChoked;       // peer is choking this client
     public boolean remoteIsChoked;      // this client is choking peer
     public boolean localIsInterested;   // this client is interested
@@ -35,9 +73,10 @@ public class BitPeer {
     /* BitPeer(InetAddress, int): constructor for peer from command line/tracker */
     public BitPeer(InetAddress peerAddr, int peerPort) {
         this.peerAddrPort = new InetSocketAddress(peerAddr, peerPort);
+        this.isInbound = false;
         String stringToHash = getIP().toString() + getPort();
         peerID = BitLibrary.getSHA1(stringToHash);
-        this.outstandingRequests = new HashSet<>();
+        this.outstandingRequests = new ArrayList<>();
 
         // peers start out choked and uninterested
         this.localIsChoked = true;
@@ -49,11 +88,13 @@ public class BitPeer {
     /* BitPeer(Socket): constructor for receiving peer off welcome socket */
     public BitPeer(Socket peerSocket) {
         this.peerSocket = peerSocket;
+        this.peerChannel = peerSocket.getChannel();
         this.peerAddrPort = new InetSocketAddress(peerSocket.getInetAddress(), 
                                                   peerSocket.getPort());
+        this.isInbound = true;
         String stringToHash = getIP().toString() + getPort();
         peerID = BitLibrary.getSHA1(stringToHash);
-        this.outstandingRequests = new HashSet<>();
+        this.outstandingRequests = new ArrayList<>();
 
         // peers start out choked and uninterested
         this.localIsChoked = true;
@@ -72,37 +113,126 @@ public class BitPeer {
 
     }
 
-    /* connect:  connect to specified peer */
-    public int connect() {
+    /* connect:  connect to specified peer, giving up after timeoutMs */
+    /* (0 for no limit) */
+    public int connect(int timeoutMs) {
         // initialize input/output streams
         try {
-            peerSocket = new Socket(getIP(), getPort());
+            peerChannel = SocketChannel.open();
+            peerSocket = peerChannel.socket();
+            peerSocket.connect(peerAddrPort, timeoutMs);
             outToPeer = new BufferedOutputStream(
                         new DataOutputStream(peerSocket.getOutputStream()));
             inFromPeer = new BufferedInputStream(
                          new DataInputStream(peerSocket.getInputStream()));
         } catch (IOException ex) {
-            System.err.println("error: failed to connect to peer at " + getIP());
+            Log.error("error: failed to connect to peer at " + getIP());
             return -1;
         }
 
         return 0;
     }
 
-    /* updateLastUsed: refresh the timestamp for when last used */
-    public void updateLastUsed() {
+    /* getLastReceived:  when a whole message last came in, in ms */
+    public long getLastReceived() {
+        return lastReceived;
+    }
+
+    /* getLastSent:  when a message was last sent or queued, in ms */
+    public long getLastSent() {
+        return lastSent;
+    }
+
+    public TimingWheel.Timer<BitPeer> getTimer() {
+        return timer;
+    }
+
+    public void setTimer(TimingWheel.Timer<BitPeer> timer) {
+        this.timer = timer;
+    }
+
+    /* takeRequest:  remove and return the outstanding request for a */
+    /* block, or null if it was not requested of this peer */
+    public BitPiece.Block takeRequest(int index, int begin) {
+        for (int i = 0; i < outstandingRequests.size(); ++i) {
+            BitPiece.Block req = outstandingRequests.get(i);
+            if (req.index == index && req.begin == begin) {
+                return outstandingRequests.remove(i);
+            }
+        }
+        return null;
+    }
+
+    /* onBlockReceived:  update download rate and RTT with a requested */
+    /* block that just arrived */
+    public void onBlockReceived(BitPiece.Block req, long now) {
+        minRtt = Math.min(minRtt, now - req.requestedAt);
+        rateBytes += req.length;
+        long elapsed = now - rateStart;
+        if (elapsed >= RATE_WINDOW_NS) {
+            double rate = rateBytes * 1e9 / elapsed;
+            downloadRate = (downloadRate == 0) ? rate : 0.7 * downloadRate + 0.3 * rate;
+            rateBytes = 0;
+            rateStart = now;
+        }
+    }
+
+    /* onPieceReceived:  count a PIECE's block toward the receive rate */
+    public void onPieceReceived(int len, long nowMs) {
+        receiveMeter.add(len, nowMs);
+        downloaded.add(len);
+    }
+
+    /* setCounters:  count this peer's PIECE bytes in these counters, */
+    /* e.g., ones that roll up into the client's totals */
+    /* must be called before the handshake completes */
+    public void setCounters(Counter downloaded, Counter uploaded) {
+        this.downloaded = downloaded;
+        this.uploaded = uploaded;
+    }
+
+    public Counter getDownloaded() {
+        return downloaded;
+    }
+
+    public Counter getUploaded() {
+        return uploaded;
     }
 
-    public boolean[] getBitfield() {
+    /* getReceiveRate:  bytes per second of blocks from this peer */
+    public double getReceiveRate(long nowMs) {
+        return receiveMeter.getRate(nowMs);
+    }
+
+    /* getSendRate:  bytes per second of blocks queued for this peer */
+    public double getSendRate(long nowMs) {
+        return sendMeter.getRate(nowMs);
+    }
+
+    /* getPipelineDepth:  block requests to keep in flight to this peer */
+    /* covers the bandwidth-delay product (rate x best RTT) with half again */
+    /* as headroom, so the depth keeps growing while it limits the rate */
+    public int getPipelineDepth() {
+        if (minRtt == Long.MAX_VALUE || downloadRate == 0) {
+            return MIN_PIPELINE;
+        }
+        double bdp = downloadRate * minRtt / 1e9;
+        long depth = (long) Math.ceil(1.5 * bdp / BitPiece.BLOCK_SIZE) + MIN_PIPELINE;
+        return (int) Math.min(depth, MAX_PIPELINE);
+    }
+
+    public Bitfield getBitfield() {
         return this.remoteBitfield;
     }
 
-    public void setBitfield(boolean[] remoteBitfield) {
+    public void setBitfield(Bitfield remoteBitfield) {
         this.remoteBitfield = remoteBitfield;
     }
 
-    public void addToBitfield(int index) {
-        remoteBitfield[index] = true;
+    /* addToBitfield: note that peer has a piece */
+    /* return false if that was already known */
+    public boolean addToBitfield(int index) {
+        return remoteBitfield.set(index);
     }
 
     /* getNextMessage: return the next message off the messageQ */
@@ -115,38 +245,106 @@ public class BitPeer {
         synchronized (messageQ) {
             msg = messageQ.poll();
             messageQ.notifyAll();    // notify reader thread of new space
+            // resume selector reads paused by a full backlog
+            if (selectionKey != null && selectionKey.isValid()
+                    && messageQ.size() < MSG_BACKLOG
+                    && (selectionKey.interestOps() & SelectionKey.OP_READ) == 0) {
+                selectionKey.interestOpsOr(SelectionKey.OP_READ);
+                selectionKey.selector().wakeup();
+            }
         }
         return msg;
     }
 
-    /* getRarePiece: return index of a piece had by peer and not in */
-    /* remoteBitfield do this randomly, and return -1 if no such piece exists */
-    public int getRarePiece(boolean[] clientHas) {
-        if (remoteBitfield == null || clientHas == null) {
-            return -1;
+    /* deliverMessage: queue a message framed by the BitSelector */
+    /* pauses further reads from the socket while the backlog is full */
+    public void deliverMessage(BitMessage msg) {
+        lastReceived = System.currentTimeMillis();
+        //noinspection SynchronizeOnNonFinalField
+        synchronized (messageQ) {
+            messageQ.offer(msg);
+            if (messageQ.size() >= MSG_BACKLOG && selectionKey.isValid()) {
+                selectionKey.interestOpsAnd(~SelectionKey.OP_READ);
+            }
         }
+    }
+
+    /* startReader: begin reading messages through the selector */
+    /* once the handshake is complete */
+    public void startReader(BitSelector selector) {
+        this.messageQ = new ArrayDeque<>();
+        flushOutput();
+        sendQueue = new BitSendQueue(uploaded);
+        selectionKey = selector.register(this, peerChannel);
+        if (selectionKey == null) {
+            close();
+        }
+    }
 
-        int[] rarePieces = new int[clientHas.length];
-        int j = 0;
-        for (int i = 0; i < clientHas.length; ++i) {
-            if (!clientHas[i] && remoteBitfield[i]) {
-                rarePieces[j++] = i;
+    /* runReader: read messages on the calling thread, passing each to */
+    /* handler; returns once the connection is lost */
+    public void runReader(BufferPool blockPool, Consumer<BitMessage> handler) {
+        new BitReader(inFromPeer, blockPool, msg -> {
+            lastReceived = System.currentTimeMillis();
+            handler.accept(msg);
+        }).run();
+    }
+
+    public boolean isClosed() {
+        return isClosed;
+    }
+
+    public boolean isInbound() {
+        return isInbound;
+    }
+
+    /* close:  drop the connection to this peer */
+    public void close() {
+        isClosed = true;
+        if (sendQueue != null) {
+            sendQueue.close();
+        }
+        if (messageQ != null) {
+            // hand pooled blocks of unprocessed messages back
+            //noinspection SynchronizeOnNonFinalField
+            synchronized (messageQ) {
+                for (BitMessage msg : messageQ) {
+                    msg.release();
+                }
+                messageQ.clear();
             }
         }
-        if (j == 0) {
-            return -1;
+        if (selectionKey != null) {
+            selectionKey.cancel();
+        }
+        try {
+            if (peerSocket != null) {
+                peerSocket.close();
+            }
+        } catch (IOException ignored) {
         }
-        Random random = new Random(System.currentTimeMillis());
-        return rarePieces[random.nextInt(j)];
-
     }
 
     /* write:  write bytes out to socket */
+    /* once the peer has a send queue, bytes are queued as a control message */
     public void write(byte[] sendData, int offset, int len) {
-        if (outToPeer == null) {
+        if (outToPeer == null || isClosed) {
             return;
         }
 
+        lastSent = System.currentTimeMillis();
+        if (sendQueue != null) {
+            try {
+                if (sendQueue.offerControl(ByteBuffer.wrap(sendData, offset, len))) {
+                    wakeWriter();
+                }
+            } catch (IOException ex) {
+                Log.error("error: dropping peer at " + getIP()
+                          + ": " + ex.getMessage());
+                close();
+            }
+            return;
+        }
         try {
             outToPeer.write(sendData, offset, len);
             outToPeer.flush();
@@ -155,86 +353,215 @@ public class BitPeer {
         }
     }
 
-    /* sendHandshake: open socket to peer and send handshake message */
-    /* return 0 on success, -1 on failure */
-    public void sendHandshake(String encoded) {
-        // open connection socket
+    /* send:  send a message other than a PIECE */
+    /* once the peer has a send queue, it is encoded straight into it */
+    public void send(BitMessage msg) {
+        if (sendQueue == null) {
+            byte[] packedMsg = msg.pack();
+            write(packedMsg, 0, packedMsg.length);
+            return;
+        }
+        if (isClosed) {
+            return;
+        }
+
+        lastSent = System.currentTimeMillis();
+        try {
+            if (sendQueue.offerControl(msg)) {
+                wakeWriter();
+            }
+        } catch (IOException ex) {
+            Log.error("error: dropping peer at " + getIP()
+                      + ": " + ex.getMessage());
+            close();
+        }
+    }
+
+    /* sendPiece:  queue a PIECE message whose block is read from source */
+    /* when the message is sent, the header goes first and then the block */
+    /* goes from storage to the socket with transferTo (sendfile) */
+    public void sendPiece(int index, int begin, PieceStorage source,
+                          long position, int len) {
+        if (sendQueue == null || isClosed) {
+            return;    // only handshaken peers are sent pieces
+        }
+
+        lastSent = System.currentTimeMillis();
+        sendMeter.add(len, lastSent);
+        if (sendQueue.offerPiece(source, index, begin, position, len)) {
+            wakeWriter();
+        }
+    }
+
+    /* cancelPiece:  drop a queued PIECE message the peer no longer wants */
+    /* return true if it had not been sent yet */
+    public boolean cancelPiece(int index, int begin, int len) {
+        return sendQueue != null && sendQueue.cancelPiece(index, begin, len);
+    }
+
+    /* hasRequest:  true if a block is outstanding with this peer */
+    public boolean hasRequest(int index, int begin) {
+        for (BitPiece.Block req : outstandingRequests) {
+            if (req.index == index && req.begin == begin) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /* hasSendRoom: false while too much PIECE data is queued for peer */
+    public boolean hasSendRoom() {
+        return sendQueue == null || sendQueue.hasRoom();
+    }
+
+    /* awaitSendRoom: block until queued PIECE data is under its limit */
+    public void awaitSendRoom() {
+        if (sendQueue != null) {
+            sendQueue.awaitRoom();
+        }
+    }
+
+    /* wakeWriter: have the selector drain the send queue when writable */
+    /* (a writer thread is woken by the queue itself) */
+    private void wakeWriter() {
+        if (selectionKey != null && selectionKey.isValid()) {
+            selectionKey.interestOpsOr(SelectionKey.OP_WRITE);
+            selectionKey.selector().wakeup();
+        }
+    }
+
+    /* flushPending: called by the selector when the socket is writable */
+    public void flushPending() throws IOException {
+        sendQueue.drain(peerChannel);
+        synchronized (sendQueue) {
+            if (sendQueue.isEmpty()) {
+                selectionKey.interestOpsAnd(~SelectionKey.OP_WRITE);
+            }
+        }
+    }
+
+    /* startWriter: send queued messages from a thread of executor */
+    /* once the handshake is complete (thread engine) */
+    public void startWriter(Executor executor) {
+        flushOutput();
+        sendQueue = new BitSendQueue(uploaded);
+        executor.execute(() -> {
+            try {
+                while (sendQueue.awaitWork()) {
+                    sendQueue.drain(peerChannel);
+                }
+            } catch (IOException ex) {
+                Log.error("error: writer lost connection to peer");
+            }
+            close();
+        });
+    }
+
+    /* flushOutput: push out bytes written before the send queue existed */
+    private void flushOutput() {
         try {
-            // send handshake
-            byte[] handshakeMsg = generateHandshake(encoded);
-            outToPeer.write(handshakeMsg, 0, handshakeMsg.length);
             outToPeer.flush();
         } catch (IOException ex) {
-            System.err.println("error: could not initiate connection");
+            ex.printStackTrace();
         }
+    }
+
+    /* getHandshakeTemplate:  the first 48 bytes of every handshake for a */
+    /* torrent, built once; each handshake appends a 20-byte peer ID */
+    public static byte[] getHandshakeTemplate(byte[] infoHash) {
+        ByteBuffer template = ByteBuffer.allocate(HANDSHAKE_SIZE - PEER_ID_SIZE);
+        // (i) byte=19 followed by "BitTorrent protocol"
+        template.put((byte) 19);
+        template.put("BitTorrent protocol".getBytes(StandardCharsets.US_ASCII));
+        // (ii) 8-byte extension (here we use all zeroes)
+        template.put(new byte[8]);
+        // (iii) 20-byte info-hash: SHA1 of the .torrent's raw info dict
+        template.put(infoHash);
+        return template.array();
+    }
 
+    /* sendHandshake: send the handshake built from template */
+    public void sendHandshake(byte[] template) {
+        byte[] handshakeMsg = generateHandshake(template);
+        write(handshakeMsg, 0, handshakeMsg.length);
     }
 
     /* receiveHandshake: receive, verify, respond to handshake pattern */
+    /* within timeoutMs (0 for no limit) */
     /* return 0 on success, -1 on failure */
-    public int receiveHandshake(String encoded) {
-        if (inFromPeer == null || outToPeer == null) {
-            System.err.println("error: receiveHandshake found null socket");
+    public int receiveHandshake(byte[] template, int timeoutMs) {
+        byte[] peerHandshakeMsg = readHandshake(timeoutMs);
+        if (peerHandshakeMsg == null) {
             return -1;
         }
+        if (!matchesHandshake(peerHandshakeMsg, template)) {
+            Log.error("error: peer at " + getIP()
+                      + " has wrong .torrent file");
+            return -1;
+        }
+        return 0;
+    }
+
+    /* readHandshake:  read the peer's 68-byte handshake (blocking) */
+    /* the whole handshake must arrive within timeoutMs (0 for no limit) */
+    /* return null if the connection fails or the time runs out first */
+    public byte[] readHandshake(int timeoutMs) {
+        if (inFromPeer == null || outToPeer == null) {
+            Log.error("error: receiveHandshake found null socket");
+            return null;
+        }
 
-        // read peer handshake message (blocking), compare to expected
+        // NOTE: read unbuffered so no message bytes are consumed early
         byte[] peerHandshakeMsg = new byte[HANDSHAKE_SIZE];
+        long deadline = System.currentTimeMillis() + timeoutMs;
         try {
-            // continue reading until full handshake is read;
+            InputStream in = peerSocket.getInputStream();
             int numRead = 0;
             while (numRead < HANDSHAKE_SIZE) {
-                numRead += inFromPeer.read(peerHandshakeMsg, numRead, 
-                                           HANDSHAKE_SIZE - numRead);
+                if (timeoutMs > 0) {
+                    long left = deadline - System.currentTimeMillis();
+                    if (left <= 0) {
+                        throw new SocketTimeoutException("handshake timed out");
+                    }
+                    peerSocket.setSoTimeout((int) left);
+                }
+                int n = in.read(peerHandshakeMsg, numRead, HANDSHAKE_SIZE - numRead);
+                if (n == -1) {
+                    throw new EOFException();
+                }
+                numRead += n;
             }
         } catch (IOException ex) {
-            System.err.println("error: failed to read entire handshake");
-            return -1;
-        }
-
-        byte[] myHandshakeMsg = generateHandshake(encoded);
-        if (myHandshakeMsg.length != peerHandshakeMsg.length) {
-            return -1;
-        }
-        for (int i = 0; i < myHandshakeMsg.length - 20; ++i) {
-            // note: peerID is not being checked here (see "- 20" above)
-            if (peerHandshakeMsg[i] != myHandshakeMsg[i]) {
-                System.err.println("error: peer at " + getIP() 
-                                   + " has wrong .torrent file");
-                return -1;
+            Log.error("error: failed to read entire handshake from " + getIP());
+            return null;
+        } finally {
+            try {
+                peerSocket.setSoTimeout(0);    // later reads wait on the peer
+            } catch (IOException ignored) {
             }
         }
+        return peerHandshakeMsg;
+    }
 
-        // initialize reader to read from socket
-        this.messageQ = new LinkedList<>();
-        BitReader reader = new BitReader(inFromPeer, messageQ);
-        Thread t = new Thread(reader);
-        t.start();
-
-        return 0;
+    /* matchesHandshake:  true if a handshake begins with template, i.e., */
+    /* is for the same torrent (the peer ID after it is not checked) */
+    public static boolean matchesHandshake(byte[] handshake, byte[] template) {
+        return Arrays.equals(handshake, 0, template.length,
+                             template, 0, template.length);
     }
 
-    public byte[] generateHandshake(String encoded) {
-        ByteBuffer handshakeMsg = ByteBuffer.allocate(HANDSHAKE_SIZE);
+    /* getInfoHash:  the info-hash a handshake asks for */
+    public static byte[] getInfoHash(byte[] handshake) {
+        int end = HANDSHAKE_SIZE - PEER_ID_SIZE;
+        return Arrays.copyOfRange(handshake, end - INFO_HASH_SIZE, end);
+    }
 
-        // construct 48-byte handshake message
-        // (i) byte=19 followed by "BitTorrent protocol"
-        byte b = 19;
-        handshakeMsg.put(b);
-        handshakeMsg.put("BitTorrent protocol".getBytes(StandardCharsets.US_ASCII));
-        // (ii) 8-byte extension (here we use all zeroes)
-        byte[] pad = new byte[8];
-        for (int i = 0; i < 8; ++i) {
-            pad[i] = 0;
-        }
-        handshakeMsg.put(pad);
-        // (iii) 20-byte SHA1 encoding of bencoded metainfo (diff. from protocol)
-        handshakeMsg.put(Objects.requireNonNull(BitLibrary.getSHA1(encoded)));
+    /* generateHandshake:  68-byte handshake: template, then peer ID */
+    public byte[] generateHandshake(byte[] template) {
+        byte[] handshakeMsg = Arrays.copyOf(template, HANDSHAKE_SIZE);
         // (iv) 20-byte peer ID (SHA1 encoding of IP and port)
-        handshakeMsg.put(peerID);
-        handshakeMsg.flip();    // prepare for writing
-
-        return handshakeMsg.array();
+        System.arraycopy(peerID, 0, handshakeMsg, template.length, PEER_ID_SIZE);
+        return handshakeMsg;
     }
 
     public InetAddress getIP() {
@@ -0,0 +1,161 @@
+/* BitPicker.java:  rarest-first choice of the next piece to download */
+/* Christopher Chute */
+
+/* keeps how many connected peers have each piece, updated as BITFIELD */
+/* and HAVE messages arrive and as peers leave. pieces live in one array */
+/* sorted by bucket, where bucket 0 holds pieces no longer wanted (had or */
+/* already started) and bucket a+1 holds wanted pieces that a peers have. */
+/* moving a piece to the next bucket up or down is a single swap with the */
+/* edge of its bucket, so every update is O(1). */
+
+/* pick() walks the buckets from the rarest up, starting each at a random */
+/* spot to break ties, and returns the first piece the peer has; for a */
+/* peer with most pieces that is found in a step or two */
+
+import util.lib.Bitfield;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class BitPicker {
+    private final int[] availability;   // peers that have each piece
+    private final boolean[] isWanted;   // not had and not started
+    private final int[] order;          // pieces sorted by bucket
+    private final int[] position;       // where each piece is in order
+    private int[] bucketStart;          // first position of each bucket
+    private final Random random = new Random();
+
+    /* BitPicker:  start with every piece wanted and had by no peer */
+    public BitPicker(int numPieces) {
+        availability = new int[numPieces];
+        isWanted = new boolean[numPieces];
+        order = new int[numPieces];
+        position = new int[numPieces];
+        for (int i = 0; i < numPieces; ++i) {
+            isWanted[i] = true;
+            order[i] = i;
+            position[i] = i;
+        }
+        bucketStart = new int[8];
+        Arrays.fill(bucketStart, numPieces);
+        bucketStart[0] = 0;
+        bucketStart[1] = 0;    // everything in bucket 1: wanted, 0 peers
+    }
+
+    public int getAvailability(int index) {
+        return availability[index];
+    }
+
+    public boolean isWanted(int index) {
+        return isWanted[index];
+    }
+
+    /* hasAvailable:  true if some connected peer has a wanted piece */
+    public boolean hasAvailable() {
+        return bucketStart[2] < order.length;
+    }
+
+    /* addPeer:  count the pieces of a peer's bitfield */
+    public void addPeer(Bitfield remoteBitfield) {
+        for (int i = remoteBitfield.nextSetBit(0); i >= 0;
+                i = remoteBitfield.nextSetBit(i + 1)) {
+            addHave(i);
+        }
+    }
+
+    /* removePeer:  stop counting a departed peer's pieces */
+    public void removePeer(Bitfield remoteBitfield) {
+        for (int i = remoteBitfield.nextSetBit(0); i >= 0;
+                i = remoteBitfield.nextSetBit(i + 1)) {
+            removeHave(i);
+        }
+    }
+
+    /* addHave:  one more peer has a piece */
+    public void addHave(int index) {
+        if (isWanted[index]) {
+            moveUp(index, availability[index] + 1);
+        }
+        ++availability[index];
+    }
+
+    /* removeHave:  one fewer peer has a piece */
+    public void removeHave(int index) {
+        if (isWanted[index]) {
+            moveDown(index, availability[index] + 1);
+        }
+        --availability[index];
+    }
+
+    /* setWanted:  take a piece out of picking once it is had or started, */
+    /* or put it back, e.g., after it fails its hash check */
+    public void setWanted(int index, boolean wanted) {
+        if (isWanted[index] == wanted) {
+            return;
+        }
+        isWanted[index] = wanted;
+        if (wanted) {
+            for (int b = 0; b <= availability[index]; ++b) {
+                moveUp(index, b);
+            }
+        } else {
+            for (int b = availability[index] + 1; b > 0; --b) {
+                moveDown(index, b);
+            }
+        }
+    }
+
+    /* pick:  rarest wanted piece the peer has, ties broken at random */
+    /* return -1 if the peer has no wanted piece */
+    public int pick(Bitfield remoteBitfield) {
+        if (remoteBitfield == null) {
+            return -1;
+        }
+        for (int b = 2; b < bucketStart.length; ++b) {
+            int start = bucketStart[b];
+            int end = (b + 1 < bucketStart.length) ? bucketStart[b + 1] : order.length;
+            int size = end - start;
+            if (size == 0) {
+                continue;
+            }
+            int first = random.nextInt(size);
+            for (int i = 0; i < size; ++i) {
+                int index = order[start + (first + i) % size];
+                if (remoteBitfield.get(index)) {
+                    return index;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /* moveUp:  move a piece from bucket b to the next one up, by */
+    /* swapping it to the top of b and shrinking b */
+    private void moveUp(int index, int b) {
+        if (b + 2 >= bucketStart.length) {
+            int oldLength = bucketStart.length;
+            bucketStart = Arrays.copyOf(bucketStart, oldLength * 2);
+            Arrays.fill(bucketStart, oldLength, bucketStart.length, order.length);
+        }
+        int top = bucketStart[b + 1] - 1;
+        swap(position[index], top);
+        --bucketStart[b + 1];
+    }
+
+    /* moveDown:  move a piece from bucket b to the next one down, by */
+    /* swapping it to the bottom of b and shrinking b */
+    private void moveDown(int index, int b) {
+        int bottom = bucketStart[b];
+        swap(position[index], bottom);
+        ++bucketStart[b];
+    }
+
+    private void swap(int i, int j) {
+        int a = order[i];
+        int b = order[j];
+        order[i] = b;
+        order[j] = a;
+        position[a] = j;
+        position[b] = i;
+    }
+}
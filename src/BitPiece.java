@@ -0,0 +1,156 @@
+/* BitPiece.java:  download state of one piece, split into blocks */
+/* Christopher Chute */
+
+/* a piece is requested as BLOCK_SIZE blocks (the last may be shorter), */
+/* possibly from several peers; it is done once every block is on disk */
+
+public class BitPiece {
+    public static final int BLOCK_SIZE = 16 * 1024;    // bytes per REQUEST
+
+    private final int index;
+    private final int length;
+    private final boolean[] isRequested;    // block asked of some peer
+    private final boolean[] isReceived;     // block arrived (maybe not written)
+    private final boolean[] isWritten;      // block is on disk
+    private int numUnrequested;
+    private int numWritten = 0;
+
+    /* Block:  a request for one block, as outstanding with a peer */
+    public static class Block {
+        public final int index;
+        public final int begin;
+        public final int length;
+        public long requestedAt;            // System.nanoTime() when sent
+
+        public Block(int index, int begin, int length) {
+            this.index = index;
+            this.begin = begin;
+            this.length = length;
+        }
+    }
+
+    public BitPiece(int index, int length) {
+        this.index = index;
+        this.length = length;
+        int numBlocks = (length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        this.isRequested = new boolean[numBlocks];
+        this.isReceived = new boolean[numBlocks];
+        this.isWritten = new boolean[numBlocks];
+        this.numUnrequested = numBlocks;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /* hasUnrequested:  true if some block is not yet asked of any peer */
+    public boolean hasUnrequested() {
+        return numUnrequested > 0;
+    }
+
+    /* nextRequest:  mark the first unrequested block requested */
+    /* return it, or null if every block has been requested */
+    public Block nextRequest() {
+        for (int i = 0; i < isRequested.length; ++i) {
+            if (!isRequested[i]) {
+                isRequested[i] = true;
+                --numUnrequested;
+                int begin = i * BLOCK_SIZE;
+                return new Block(index, begin, Math.min(BLOCK_SIZE, length - begin));
+            }
+        }
+        return null;
+    }
+
+    /* cancelRequest:  make a block requestable again, e.g., after the */
+    /* peer it was asked of choked us or was dropped */
+    public void cancelRequest(int begin) {
+        int i = begin / BLOCK_SIZE;
+        if (isRequested[i] && !isReceived[i]) {
+            isRequested[i] = false;
+            ++numUnrequested;
+        }
+    }
+
+    /* isExpected:  true if a block at begin of blockLength bytes belongs */
+    /* to this piece and has not arrived yet */
+    public boolean isExpected(int begin, int blockLength) {
+        if (begin < 0 || begin % BLOCK_SIZE != 0 || begin >= length) {
+            return false;
+        }
+        int i = begin / BLOCK_SIZE;
+        return !isReceived[i] && blockLength == Math.min(BLOCK_SIZE, length - begin);
+    }
+
+    /* nextPending:  first block at or after begin that has been requested */
+    /* but has not arrived, e.g., to ask another peer for it in endgame */
+    /* return its begin, or -1 if there is none */
+    public int nextPending(int begin) {
+        for (int i = Math.max(begin, 0) / BLOCK_SIZE; i < isRequested.length; ++i) {
+            if (isRequested[i] && !isReceived[i]) {
+                return i * BLOCK_SIZE;
+            }
+        }
+        return -1;
+    }
+
+    /* getBlock:  a request for the block at begin */
+    public Block getBlock(int begin) {
+        return new Block(index, begin, Math.min(BLOCK_SIZE, length - begin));
+    }
+
+    public void markReceived(int begin) {
+        int i = begin / BLOCK_SIZE;
+        if (!isRequested[i]) {
+            isRequested[i] = true;
+            --numUnrequested;
+        }
+        isReceived[i] = true;
+    }
+
+    /* markWritten:  note a received block is on disk */
+    /* return true once every block of the piece is */
+    public boolean markWritten(int begin) {
+        int i = begin / BLOCK_SIZE;
+        if (!isWritten[i]) {
+            isWritten[i] = true;
+            ++numWritten;
+        }
+        return isComplete();
+    }
+
+    /* isComplete:  true once every block is on disk */
+    public boolean isComplete() {
+        return numWritten == isWritten.length;
+    }
+
+    /* getWritten:  which blocks are on disk, e.g., for the resume file */
+    public boolean[] getWritten() {
+        return isWritten.clone();
+    }
+
+    /* restoreWritten:  mark the blocks recorded as on disk by an earlier */
+    /* run as received and written */
+    public void restoreWritten(boolean[] written) {
+        for (int i = 0; i < isWritten.length && i < written.length; ++i) {
+            if (written[i]) {
+                markReceived(i * BLOCK_SIZE);
+                markWritten(i * BLOCK_SIZE);
+            }
+        }
+    }
+
+    public int getNumBlocks() {
+        return isWritten.length;
+    }
+
+    /* markFailed:  a received block could not be written; request again */
+    public void markFailed(int begin) {
+        isReceived[begin / BLOCK_SIZE] = false;
+        cancelRequest(begin);
+    }
+}
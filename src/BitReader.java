@@ -1,76 +1,90 @@
 /* BitReader.java:  runnable class to read from a connected BitPeer */
-/* main purpose is to provide non-blocking reading of messages into messageQ */
+/* hands each message to a handler on the thread that runs it */
 /* Christopher Chute */
 
+import util.lib.BufferPool;
+import util.lib.Log;
+import util.lib.PooledBuffer;
+
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
-import java.util.Queue;
+import java.util.function.Consumer;
 
 public class BitReader implements Runnable {
     private static final int INT_LEN = 4;
-    private static final int MSG_BACKLOG = 10;    // max outstanding messages
 
-    private final InputStream inFromPeer;        // incoming messages
-    private final Queue<BitMessage> messageQ;    // queue of messages
+    private final DataInputStream inFromPeer;    // incoming messages
+    private final BufferPool blockPool;          // buffers for PIECE blocks
+    private final Consumer<BitMessage> handler;  // processes each message
+    private final BitCodec codec = new BitCodec();  // decodes in place
+    private ByteBuffer scratch = ByteBuffer.allocate(256);  // non-PIECE messages
     private volatile boolean isStopped = false;   // for killing thread
 
-    public BitReader(final InputStream inp, final Queue<BitMessage> queue) {
-        this.inFromPeer = inp;
-        this.messageQ = queue;
+    public BitReader(final InputStream inp, final BufferPool blockPool,
+                     final Consumer<BitMessage> handler) {
+        this.inFromPeer = new DataInputStream(inp);
+        this.blockPool = blockPool;
+        this.handler = handler;
     }
 
     public void stopThread() {
         this.isStopped = true;
     }
 
+    /* run:  read messages until stopped or the connection is lost */
     public void run() {
-        byte[] lenBuf = new byte[INT_LEN];
         while (!isStopped) {
-            // read length of message
-            int numRead = 0;
+            BitMessage msg;
             try {
-                numRead = inFromPeer.read(lenBuf, 0, INT_LEN);
+                msg = readMessage();
             } catch (IOException ex) {
-                ex.printStackTrace();
-            }
-            if (numRead != INT_LEN) {
-                throw new RuntimeException("error: reader thread misaligned");
+                Log.error("error: reader lost connection to peer");
+                return;
             }
-            // NOTE: use ByteBuffer for integer encoding
-            ByteBuffer buf = ByteBuffer.wrap(lenBuf);
-            int msgLen = buf.getInt();
 
-            // read rest of message
-            byte[] rcvData = new byte[INT_LEN + msgLen];
-            // (i) copy over the message length
-            System.arraycopy(lenBuf, 0, rcvData, 0, INT_LEN);
-            // (ii) read rest of message from inFromPeer
+            handler.accept(msg);
+        }
+    }
+
+    /* readMessage:  read the next message, a PIECE block into a pooled */
+    /* buffer and anything else into a reused scratch buffer */
+    private BitMessage readMessage() throws IOException {
+        int msgLen = inFromPeer.readInt();
+        if (msgLen < 0 || msgLen > BitCodec.MAX_LENGTH) {
+            throw new IOException("invalid message length " + msgLen);
+        }
+        if (msgLen == 0) {
+            return new BitMessage(BitMessage.MessageType.KEEP_ALIVE);
+        }
+        byte id = inFromPeer.readByte();
+        if (id == BitCodec.PIECE_ID && msgLen >= BitCodec.PIECE_PREFIX) {
+            if (msgLen - BitCodec.PIECE_PREFIX > BitPiece.BLOCK_SIZE) {
+                throw new IOException("PIECE block longer than any request");
+            }
+            int index = inFromPeer.readInt();
+            int begin = inFromPeer.readInt();
+            PooledBuffer block = blockPool.acquire(msgLen - BitCodec.PIECE_PREFIX);
+            ByteBuffer buf = block.buffer();
             try {
-                // continue reading until entire message is read
-                for (numRead = 0; numRead < msgLen; ) {
-                    numRead += inFromPeer.read(rcvData, INT_LEN + numRead, msgLen - numRead);
-                }
+                inFromPeer.readFully(buf.array(), buf.arrayOffset(), buf.limit());
             } catch (IOException ex) {
-                ex.printStackTrace();
-            }
-            if (numRead != msgLen) {
-                System.err.format("warning: msgLen was %d but only got %d\n", msgLen, numRead);
-            }
-
-            BitMessage msg = BitMessage.unpack(rcvData);
-
-            // add message to the messageQ, wait if there's a backlog
-            synchronized (messageQ) {
-                while (messageQ.size() >= MSG_BACKLOG) {
-                    try {
-                        messageQ.wait();
-                    } catch (InterruptedException ex) {
-                        ex.printStackTrace();
-                    }
-                }
-                messageQ.offer(msg);
+                block.release();
+                throw ex;
             }
+            return new BitMessage(BitMessage.MessageType.PIECE, index, begin, block);
+        }
+        if (scratch.capacity() < INT_LEN + msgLen) {
+            scratch = ByteBuffer.allocate(INT_LEN + msgLen);  // e.g., a BITFIELD
+        }
+        scratch.clear();
+        scratch.putInt(msgLen).put(id);
+        inFromPeer.readFully(scratch.array(), INT_LEN + 1, msgLen - 1);
+        codec.wrap(scratch.position(0));
+        if (!codec.isValid()) {
+            throw new IOException("unrecognized message");
         }
+        return codec.toMessage();
     }
 }
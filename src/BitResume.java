@@ -0,0 +1,174 @@
+/* BitResume.java:  resume file kept alongside a download */
+/* Christopher Chute */
+
+/* records which pieces are complete and which blocks of partial pieces */
+/* are on disk, so a restarted client picks up where it left off. the */
+/* data file's size and modification time are recorded with it (for a */
+/* multi-file torrent, the files' total size and latest mtime); if the */
+/* data has changed since (e.g., the client was killed mid-write) the */
+/* resume data is stale and the caller rechecks the file's hashes instead */
+
+/* layout (big-endian): magic, version, file length, piece length, */
+/* data file size, data file mtime (ns), bitfield bytes, then per partial */
+/* piece: index, block count, block bitfield bytes */
+
+import util.lib.BitLibrary;
+import util.lib.Bitfield;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+public class BitResume {
+    private static final int MAGIC = 0x42545253;    // "BTRS"
+    private static final int VERSION = 1;
+
+    private final File resumeFile;
+    private final List<File> dataFiles;
+    private final long fileLength;
+    private final int pieceLength;
+
+    public BitResume(File dataFile, long fileLength, int pieceLength) {
+        this(dataFile, List.of(dataFile), fileLength, pieceLength);
+    }
+
+    /* BitResume:  resume file for a torrent saved at dataPath, whose */
+    /* data is in dataFiles (e.g., the files under a directory) */
+    public BitResume(File dataPath, List<File> dataFiles, long fileLength,
+                     int pieceLength) {
+        this.dataFiles = dataFiles;
+        this.resumeFile = new File(dataPath.getPath() + ".resume");
+        this.fileLength = fileLength;
+        this.pieceLength = pieceLength;
+    }
+
+    /* snapshot:  encode the current download state */
+    /* taken before a flush, so it only claims blocks the flush covers */
+    public byte[] snapshot(Bitfield bitfield, Collection<BitPiece> partial) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            byte[] bits = bitfield.toWire();
+            out.writeInt(bits.length);
+            out.write(bits);
+            out.writeInt(partial.size());
+            for (BitPiece piece : partial) {
+                out.writeInt(piece.getIndex());
+                out.writeInt(piece.getNumBlocks());
+                out.write(BitLibrary.booleanToBits(piece.getWritten()));
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);    // no I/O on a byte array
+        }
+        return bytes.toByteArray();
+    }
+
+    /* save:  write a snapshot with the data file's current size and */
+    /* mtime; replaces the old resume file atomically */
+    public void save(byte[] snapshot) throws IOException {
+        File tmpFile = new File(resumeFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                Files.newOutputStream(tmpFile.toPath()))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(fileLength);
+            out.writeInt(pieceLength);
+            out.writeLong(getDataLength());
+            out.writeLong(getModifiedNanos());
+            out.write(snapshot);
+        }
+        Files.move(tmpFile.toPath(), resumeFile.toPath(),
+                   StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /* load:  read the resume file into bitfield and partial */
+    /* return false, leaving both untouched, if it is missing or stale */
+    public boolean load(Bitfield bitfield, Map<Integer, BitPiece> partial) {
+        if (!resumeFile.isFile()) {
+            return false;
+        }
+        for (File dataFile : dataFiles) {
+            if (!dataFile.isFile()) {
+                return false;
+            }
+        }
+        try (DataInputStream in = new DataInputStream(
+                Files.newInputStream(resumeFile.toPath()))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION
+                    || in.readLong() != fileLength || in.readInt() != pieceLength
+                    || in.readLong() != getDataLength()
+                    || in.readLong() != getModifiedNanos()) {
+                return false;
+            }
+            // every length is checked before it sizes an array, so a
+            // corrupt file reads as stale rather than failing the start
+            int numBytes = in.readInt();
+            if (numBytes != Bitfield.getWireLength(bitfield.size())) {
+                throw new IOException("bitfield length " + numBytes);
+            }
+            byte[] bits = new byte[numBytes];
+            in.readFully(bits);
+            Bitfield have = Bitfield.fromWire(ByteBuffer.wrap(bits), bitfield.size());
+
+            int numPartial = in.readInt();
+            if (numPartial < 0 || numPartial > bitfield.size()) {
+                throw new IOException("partial piece count " + numPartial);
+            }
+            Map<Integer, BitPiece> pieces = new HashMap<>();
+            for (int i = 0; i < numPartial; ++i) {
+                int index = in.readInt();
+                int numBlocks = in.readInt();
+                if (index < 0 || index >= bitfield.size()) {
+                    throw new IOException("piece index " + index);
+                }
+                long offset = (long) index * pieceLength;
+                BitPiece piece = new BitPiece(index,
+                        (int) Math.min(pieceLength, fileLength - offset));
+                if (piece.getNumBlocks() != numBlocks) {
+                    throw new IOException("block count " + numBlocks);
+                }
+                byte[] blockBits = new byte[numBlocks / 8 + 1];
+                in.readFully(blockBits);
+                piece.restoreWritten(BitLibrary.bitsToBoolean(blockBits, numBlocks));
+                pieces.put(index, piece);
+            }
+            for (int i = have.nextSetBit(0); i >= 0; i = have.nextSetBit(i + 1)) {
+                bitfield.set(i);
+            }
+            partial.putAll(pieces);
+            return true;
+        } catch (IOException ex) {
+            return false;    // truncated or unreadable, so stale
+        }
+    }
+
+    /* getDataLength:  total size of the data files */
+    private long getDataLength() {
+        long total = 0;
+        for (File dataFile : dataFiles) {
+            total += dataFile.length();
+        }
+        return total;
+    }
+
+    /* getModifiedNanos:  mtime of the most recently changed data file */
+    private long getModifiedNanos() throws IOException {
+        long latest = Long.MIN_VALUE;
+        for (File dataFile : dataFiles) {
+            FileTime mtime = Files.getLastModifiedTime(dataFile.toPath());
+            latest = Math.max(latest, mtime.to(TimeUnit.NANOSECONDS));
+        }
+        return latest;
+    }
+}
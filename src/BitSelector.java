@@ -0,0 +1,236 @@
+/* BitSelector.java:  single event loop serving every connected BitPeer */
+/* replaces the reader thread per peer with one non-blocking Selector */
+/* Christopher Chute */
+
+import util.lib.BufferPool;
+import util.lib.Log;
+import util.lib.PooledBuffer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+
+public final class BitSelector extends Thread {
+    private static final int INT_LEN = 4;
+    private static final int READ_BUF_SIZE = 32 * 1024;  // bytes per read call
+
+    private Selector selector = null;            // readiness for all peers
+    private final BitSignal workSignal;          // wakes the client loop
+    private final BufferPool blockPool;          // buffers for PIECE blocks
+    private final BitCodec codec = new BitCodec();  // decodes in place
+    private volatile boolean isStopped = false;  // for killing thread
+
+    /* Connection:  framing state of one registered peer */
+    private static class Connection {
+        private final BitPeer peer;
+        private final ByteBuffer inBuf = ByteBuffer.allocate(READ_BUF_SIZE);
+        private ByteBuffer msgBuf = null;    // message being assembled
+        private PooledBuffer block = null;   // or PIECE block being read
+        private int index;                   // index of that PIECE
+        private int begin;                   // begin of that PIECE
+
+        private Connection(BitPeer peer) {
+            this.peer = peer;
+        }
+    }
+
+    public BitSelector(final BitSignal workSignal, final BufferPool blockPool) {
+        super("BitSelector");
+        this.workSignal = workSignal;
+        this.blockPool = blockPool;
+        setDaemon(true);
+        try {
+            selector = Selector.open();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    public void stopThread() {
+        isStopped = true;
+        selector.wakeup();
+    }
+
+    /* register:  switch a handshaken peer to non-blocking reads */
+    /* return the peer's SelectionKey, or null on failure */
+    public SelectionKey register(BitPeer peer, SocketChannel channel) {
+        try {
+            channel.configureBlocking(false);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ,
+                                                new Connection(peer));
+            selector.wakeup();
+            return key;
+        } catch (IOException ex) {
+            Log.error("error: could not register peer at " + peer.getIP());
+            return null;
+        }
+    }
+
+    /* run:  wait for readiness and service every ready peer */
+    public void run() {
+        while (!isStopped) {
+            try {
+                selector.select();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+                continue;
+            }
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                Connection conn = (Connection) key.attachment();
+                try {
+                    if (key.isValid() && key.isWritable()) {
+                        boolean hadRoom = conn.peer.hasSendRoom();
+                        conn.peer.flushPending();
+                        if (!hadRoom && conn.peer.hasSendRoom()) {
+                            workSignal.signal();    // its requests can go on
+                        }
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        readFrom(key, conn);
+                    }
+                } catch (IOException ex) {
+                    Log.error("error: lost connection to " + conn.peer.getIP());
+                    drop(key, conn);
+                } catch (RuntimeException ex) {
+                    // one peer's bad input must not end the loop for all
+                    Log.error("error: dropping peer at " + conn.peer.getIP()
+                            + ": " + ex);
+                    drop(key, conn);
+                }
+            }
+        }
+    }
+
+    /* drop:  stop serving a peer whose connection has failed */
+    private void drop(SelectionKey key, Connection conn) {
+        key.cancel();
+        if (conn.block != null) {
+            conn.block.release();
+            conn.block = null;
+        }
+        conn.peer.close();
+        workSignal.signal();
+    }
+
+    /* readFrom:  read what is available and frame complete messages */
+    private void readFrom(SelectionKey key, Connection conn) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        int numRead = channel.read(conn.inBuf);
+        if (numRead == -1) {
+            throw new IOException("peer closed connection");
+        }
+        conn.inBuf.flip();
+        boolean delivered = false;
+        while (true) {
+            if (conn.msgBuf == null && conn.block == null) {
+                BitMessage msg = decodeWhole(conn.inBuf);
+                if (msg != null) {
+                    conn.peer.deliverMessage(msg);
+                    delivered = true;
+                    continue;
+                }
+                if (!startMessage(conn)) {
+                    break;
+                }
+            }
+            // copy as much of the message body as has arrived
+            ByteBuffer dst = (conn.block != null) ? conn.block.buffer() : conn.msgBuf;
+            int n = Math.min(dst.remaining(), conn.inBuf.remaining());
+            dst.put(dst.position(), conn.inBuf, conn.inBuf.position(), n);
+            dst.position(dst.position() + n);
+            conn.inBuf.position(conn.inBuf.position() + n);
+            if (dst.hasRemaining()) {
+                break;
+            }
+            BitMessage msg;
+            if (conn.block != null) {
+                dst.flip();
+                msg = new BitMessage(BitMessage.MessageType.PIECE,
+                                     conn.index, conn.begin, conn.block);
+                conn.block = null;
+            } else {
+                msg = decode(conn.msgBuf.flip());
+                conn.msgBuf = null;
+            }
+            conn.peer.deliverMessage(msg);
+            delivered = true;
+        }
+        conn.inBuf.compact();
+        if (delivered) {
+            workSignal.signal();
+        }
+    }
+
+    /* decodeWhole:  decode a non-PIECE message straight out of inBuf if */
+    /* all of it has arrived, and consume it */
+    /* return null if it has not, or if it is a PIECE */
+    private BitMessage decodeWhole(ByteBuffer in) throws IOException {
+        if (in.remaining() < INT_LEN) {
+            return null;
+        }
+        int msgLen = in.getInt(in.position());
+        if (msgLen < 0 || msgLen > BitCodec.MAX_LENGTH) {
+            throw new IOException("invalid message length " + msgLen);
+        }
+        if (in.remaining() < INT_LEN + msgLen) {
+            return null;
+        }
+        if (msgLen > 0 && in.get(in.position() + INT_LEN) == BitCodec.PIECE_ID) {
+            return null;
+        }
+        return decode(in);
+    }
+
+    /* decode:  decode the whole message at in's position and consume it */
+    private BitMessage decode(ByteBuffer in) throws IOException {
+        codec.wrap(in);
+        if (!codec.isValid()) {
+            throw new IOException("unrecognized message");
+        }
+        BitMessage msg = codec.toMessage();
+        in.position(in.position() + codec.getFrameLength());
+        return msg;
+    }
+
+    /* startMessage:  consume the head of the next message from inBuf and */
+    /* set up where its body goes; a PIECE block goes to a pooled buffer */
+    /* return false until enough of the head has arrived */
+    private boolean startMessage(Connection conn) throws IOException {
+        ByteBuffer in = conn.inBuf;
+        if (in.remaining() < INT_LEN) {
+            return false;
+        }
+        int msgLen = in.getInt(in.position());
+        if (msgLen < 0 || msgLen > BitCodec.MAX_LENGTH) {
+            throw new IOException("invalid message length " + msgLen);
+        }
+        if (msgLen > 0 && in.remaining() == INT_LEN) {
+            return false;    // wait for the message ID
+        }
+        if (msgLen >= BitCodec.PIECE_PREFIX
+                && in.get(in.position() + INT_LEN) == BitCodec.PIECE_ID) {
+            if (msgLen - BitCodec.PIECE_PREFIX > BitPiece.BLOCK_SIZE) {
+                throw new IOException("PIECE block longer than any request");
+            }
+            if (in.remaining() < INT_LEN + BitCodec.PIECE_PREFIX) {
+                return false;
+            }
+            in.getInt();
+            in.get();
+            conn.index = in.getInt();
+            conn.begin = in.getInt();
+            conn.block = blockPool.acquire(msgLen - BitCodec.PIECE_PREFIX);
+            return true;
+        }
+        in.getInt();
+        conn.msgBuf = ByteBuffer.allocate(INT_LEN + msgLen);
+        conn.msgBuf.putInt(msgLen);
+        return true;
+    }
+}
@@ -0,0 +1,297 @@
+/* BitSendQueue.java:  bounded outbound queue of messages for one BitPeer */
+/* Christopher Chute */
+
+/* control messages (everything but PIECE) jump ahead of queued PIECE data */
+/* at message boundaries, and everything ready is sent with one gathering */
+/* write. a single drainer (the selector or the peer's writer thread) */
+/* writes without holding the lock, so senders never wait on the socket */
+
+/* control messages are encoded straight into a staging buffer; the */
+/* drainer swaps it with a spare one, so senders keep encoding while it */
+/* is written. a message that does not fit goes to an overflow queue, */
+/* and later messages follow it there until it drains, to keep order */
+
+import util.metrics.Counter;
+import util.storage.PieceStorage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+
+public class BitSendQueue {
+    private static final int STAGING_SIZE = 16 * 1024;        // per buffer
+    private static final int MAX_BULK_BYTES = 1024 * 1024;    // queued PIECE data
+    private static final int MAX_OVERFLOW_BYTES = 1024 * 1024;// unsent overflow
+    private static final int MAX_GATHER = 64;                 // buffers per write
+
+    private ByteBuffer staging = ByteBuffer.allocateDirect(STAGING_SIZE);
+    private ByteBuffer spare = ByteBuffer.allocateDirect(STAGING_SIZE);
+    private ByteBuffer sending = null;       // staged bytes being written
+    private final ArrayDeque<ByteBuffer> overflowQ = new ArrayDeque<>();
+    private long overflowBytes = 0;
+    private final ArrayDeque<Piece> bulkQ = new ArrayDeque<>();
+    private long bulkBytes = 0;              // block bytes waiting in bulkQ
+    private final ByteBuffer pieceHeader     // header of the PIECE being sent
+            = ByteBuffer.allocateDirect(BitCodec.INT_LEN + BitCodec.PIECE_PREFIX);
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    private boolean isClosed = false;
+    private final Counter sentBytes;         // block bytes handed to the socket
+
+    /* Piece:  a queued PIECE message whose block is sent from storage */
+    private static class Piece {
+        private final PieceStorage source;
+        private final int index;
+        private final int begin;
+        private final int length;
+        private long position;               // next block byte to send
+        private int remaining;               // block bytes left to send
+        private boolean isStarted = false;   // header handed to the socket
+
+        private Piece(PieceStorage source, int index, int begin, long position,
+                      int length) {
+            this.source = source;
+            this.index = index;
+            this.begin = begin;
+            this.length = length;
+            this.position = position;
+            this.remaining = length;
+        }
+    }
+
+    /* BitSendQueue:  sentBytes counts the PIECE data actually sent */
+    public BitSendQueue(Counter sentBytes) {
+        this.sentBytes = sentBytes;
+    }
+
+    /* offerControl:  encode a control message into the queue */
+    /* return true if the queue was empty, i.e., the drainer needs waking */
+    public synchronized boolean offerControl(BitMessage msg) throws IOException {
+        boolean wasEmpty = isEmpty();
+        int len = msg.getPackedLength();
+        if (overflowQ.isEmpty() && staging.remaining() >= len) {
+            msg.pack(staging);
+        } else {
+            ByteBuffer buf = ByteBuffer.allocate(len);
+            msg.pack(buf);
+            addOverflow(buf.flip());
+        }
+        notifyAll();
+        return wasEmpty;
+    }
+
+    /* offerControl:  queue already packed bytes as a control message */
+    /* return true if the queue was empty, i.e., the drainer needs waking */
+    public synchronized boolean offerControl(ByteBuffer packed) throws IOException {
+        boolean wasEmpty = isEmpty();
+        if (overflowQ.isEmpty() && staging.remaining() >= packed.remaining()) {
+            staging.put(packed);
+        } else {
+            addOverflow(packed);
+        }
+        notifyAll();
+        return wasEmpty;
+    }
+
+    private void addOverflow(ByteBuffer buf) throws IOException {
+        if (overflowBytes + buf.remaining() > MAX_OVERFLOW_BYTES) {
+            throw new IOException("peer is not reading its messages");
+        }
+        overflowQ.offer(buf);
+        overflowBytes += buf.remaining();
+    }
+
+    /* offerPiece:  queue a PIECE message whose block is read from source */
+    /* return true if the queue was empty, i.e., the drainer needs waking */
+    public synchronized boolean offerPiece(PieceStorage source, int index,
+                                           int begin, long position, int length) {
+        boolean wasEmpty = isEmpty();
+        bulkQ.offer(new Piece(source, index, begin, position, length));
+        bulkBytes += length;
+        notifyAll();
+        return wasEmpty;
+    }
+
+    /* cancelPiece:  drop a queued PIECE message the peer has CANCELed */
+    /* the head of the queue is left alone, as the drainer may be sending */
+    /* it; return true if the message was dropped */
+    public synchronized boolean cancelPiece(int index, int begin, int length) {
+        Iterator<Piece> it = bulkQ.iterator();
+        if (it.hasNext()) {
+            it.next();
+        }
+        while (it.hasNext()) {
+            Piece piece = it.next();
+            if (piece.index == index && piece.begin == begin && piece.length == length) {
+                it.remove();
+                bulkBytes -= length;
+                notifyAll();    // wake senders waiting for room
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /* hasRoom:  false while queued PIECE data is over its limit */
+    public synchronized boolean hasRoom() {
+        return bulkBytes < MAX_BULK_BYTES;
+    }
+
+    /* awaitRoom:  block until queued PIECE data is under its limit */
+    public synchronized void awaitRoom() {
+        while (!isClosed && bulkBytes >= MAX_BULK_BYTES) {
+            try {
+                wait();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /* awaitWork:  block until there is something to send */
+    /* return false once the queue is closed */
+    public synchronized boolean awaitWork() {
+        while (!isClosed && isEmpty()) {
+            try {
+                wait();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return !isClosed;
+    }
+
+    public synchronized boolean isEmpty() {
+        return staging.position() == 0 && sending == null
+                && overflowQ.isEmpty() && bulkQ.isEmpty();
+    }
+
+    public synchronized void close() {
+        isClosed = true;
+        staging.clear();
+        overflowQ.clear();
+        overflowBytes = 0;
+        bulkQ.clear();
+        bulkBytes = 0;
+        notifyAll();
+    }
+
+    /* drain:  send queued messages until the queue is empty or, for a */
+    /* non-blocking channel, the socket stops taking bytes */
+    /* must only be called by this queue's single drainer */
+    public void drain(GatheringByteChannel channel) throws IOException {
+        while (true) {
+            Piece piece = startedPiece();
+            if (piece != null) {
+                // finish the message in progress before anything else
+                if (!sendPiece(piece, channel)) {
+                    return;
+                }
+                finishPiece();
+                continue;
+            }
+
+            // gather control messages, then the head of the PIECE data
+            int n = 0;
+            long total = 0;
+            synchronized (this) {
+                // a partly written staging buffer goes out on its own, as
+                // anything staged after it is older than the overflow
+                boolean isPartial = (sending != null);
+                if (sending == null && staging.position() > 0) {
+                    sending = staging.flip();
+                    staging = spare;
+                    spare = null;
+                }
+                if (sending != null) {
+                    gather[n++] = sending;
+                    total += sending.remaining();
+                }
+                for (ByteBuffer buf : overflowQ) {
+                    if (isPartial) {
+                        break;
+                    }
+                    if (n == MAX_GATHER - 1) {
+                        break;
+                    }
+                    gather[n++] = buf;
+                    total += buf.remaining();
+                }
+                piece = isPartial ? null : bulkQ.peek();
+                if (piece != null) {
+                    pieceHeader.clear();
+                    BitCodec.encodePieceHeader(pieceHeader, piece.index, piece.begin,
+                                               piece.length);
+                    pieceHeader.flip();
+                    gather[n++] = pieceHeader;
+                    total += pieceHeader.remaining();
+                }
+            }
+            if (n == 0) {
+                return;
+            }
+            long written = channel.write(gather, 0, n);
+            Arrays.fill(gather, 0, n, null);
+
+            // drop what was sent; a partly sent buffer stays at the front
+            synchronized (this) {
+                if (sending != null && !sending.hasRemaining()) {
+                    spare = sending.clear();
+                    sending = null;
+                }
+                while (!overflowQ.isEmpty() && !overflowQ.peek().hasRemaining()) {
+                    overflowBytes -= overflowQ.poll().limit();
+                }
+                if (piece != null && pieceHeader.position() > 0) {
+                    piece.isStarted = true;    // must finish before anything else
+                }
+            }
+            if (written < total) {
+                return;    // socket is full
+            }
+        }
+    }
+
+    /* startedPiece:  the PIECE message that is part way sent, if any */
+    private synchronized Piece startedPiece() {
+        Piece piece = bulkQ.peek();
+        return (piece != null && piece.isStarted) ? piece : null;
+    }
+
+    /* sendPiece:  send the rest of a started PIECE message */
+    /* return true once the whole message has been sent */
+    private boolean sendPiece(Piece piece, GatheringByteChannel channel)
+            throws IOException {
+        if (pieceHeader.hasRemaining()) {
+            channel.write(pieceHeader);
+            if (pieceHeader.hasRemaining()) {
+                return false;
+            }
+        }
+        while (piece.remaining > 0) {
+            long n = piece.source.transferTo(piece.position, piece.remaining, channel);
+            if (n < 0) {
+                throw new IOException("block past end of storage");
+            }
+            if (n == 0) {
+                return false;    // socket is full
+            }
+            piece.position += n;
+            sentBytes.add(n);
+            piece.remaining -= (int) n;
+        }
+        return true;
+    }
+
+    private synchronized void finishPiece() {
+        Piece piece = bulkQ.poll();
+        if (piece != null) {
+            bulkBytes -= piece.length;
+            notifyAll();    // wake senders waiting for room
+        }
+    }
+}
@@ -0,0 +1,30 @@
+/* BitSignal.java:  wakes the client loop when there is work for it */
+/* Christopher Chute */
+
+public class BitSignal {
+    private boolean isPending = false;    // work arrived since last await
+
+    /* signal:  note that new work has arrived and wake the waiting loop */
+    public synchronized void signal() {
+        isPending = true;
+        notifyAll();
+    }
+
+    /* await:  block until work arrives or timeoutMs elapses */
+    public synchronized void await(long timeoutMs) {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (!isPending) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                break;
+            }
+            try {
+                wait(remaining);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        isPending = false;
+    }
+}
@@ -0,0 +1,1054 @@
+/* BitTorrent.java:  one torrent served by a BitClient session */
+/* Christopher Chute */
+
+/* holds everything that belongs to a single torrent: its metainfo, */
+/* pieces, storage, verifier, peers and choking. the session (BitClient) */
+/* owns what torrents share: the listener, the event loop, the disk and */
+/* hashing threads, the metrics and the connection budget. methods are */
+/* called with the session's clientLock held unless noted otherwise */
+
+import util.bencode.BDecoder;
+import util.bencode.BDict;
+import util.bencode.BEncoder;
+import util.bencode.BList;
+import util.bencode.BNumber;
+import util.bencode.BObject;
+import util.bencode.BString;
+import util.lib.BitLibrary;
+import util.lib.Bitfield;
+import util.lib.Log;
+import util.metrics.Counter;
+import util.metrics.MetricsRegistry;
+import util.storage.MappedStorage;
+import util.storage.MultiFileStorage;
+import util.storage.PieceStorage;
+import util.storage.RandomAccessStorage;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+public class BitTorrent {
+    private static final int SHA_LENGTH = 20;          // bytes in a SHA1 hash
+    private static final int MAX_BLOCK_REQUEST = 128 * 1024;    // largest served
+    private static final long RESUME_SAVE_MS = 30 * 1000;       // resume period
+    private static final int MIN_PEERS = 5;            // ask tracker for more
+    private static final BitMessage UNCHOKE_MSG
+            = new BitMessage(BitMessage.MessageType.UNCHOKE);
+    private static final BitMessage CHOKE_MSG
+            = new BitMessage(BitMessage.MessageType.CHOKE);
+
+    private final String torrentName;                  // .torrent file name
+    private final byte[] encoded;                      // Bencoded .torrent file
+    private final String tag;                          // log line prefix
+    private final String label;                        // metrics label
+    private byte[] infoHash;                           // SHA1 of the raw info dict
+    private byte[] handshakeTemplate;                  // handshake up to peer ID
+    private long fileLength = -1;                      // len of whole torrent
+    private String[] filePaths = null;                 // multi-file: relative paths
+    private long[] fileLengths = null;                 // multi-file: their lengths
+    private int pieceLength = -1;                      // len of each piece
+    private int numPieces = -1;                        // num. of pieces in file
+    private byte[] pieceHashes = null;                 // SHA1 of each piece
+    private Bitfield localBitfield = null;             // pieces client has
+    private BitPicker picker = null;                   // rarest piece next
+    private BitChoker choker = null;                   // who we upload to
+    private final int maxUnchoked;                     // upload slots
+    private final HashMap<Integer, BitPiece> downloading  // pieces in progress
+            = new HashMap<>();
+    private boolean isEndgame = false;                 // blocks asked of >1 peer
+    private String savePath;                           // save location
+    private PieceStorage storage = null;               // file to transfer
+    private BitVerifier verifier = null;               // hashes off the loop
+    private BitResume resume = null;                   // null for a seeder
+    private long lastResumeSave = 0;                   // time of last save
+    private String trackerURL = null;                  // URL of tracker
+    private BitTracker tracker = null;                 // null if none usable
+    private final LinkedList<InetSocketAddress> trackerQ  // peers from tracker
+            = new LinkedList<>();
+    private final HashSet<InetSocketAddress> dialed    // connecting or connected
+            = new HashSet<>();
+    private final Counter downloaded                   // PIECE bytes, all peers
+            = new Counter(BitClient.totalDownloaded);
+    private final Counter uploaded = new Counter(BitClient.totalUploaded);
+    private volatile long bytesLeft = 0;               // not yet verified
+    private boolean isSeeder;                          // client has entire file
+    private final ArrayList<BitPeer> peerList = new ArrayList<>(); // connected
+    private int numUnchoked = 0;                       // peers we unchoked
+    private volatile int numOutstanding = 0;           // block requests in flight
+
+    /* BitTorrent:  a torrent read from torrentName; savePath may be null */
+    /* to save under its suggested name. tag prefixes its log lines when */
+    /* the session has more than one torrent */
+    public BitTorrent(String torrentName, byte[] encoded, String savePath,
+                      boolean isSeeder, int maxUnchoked, String tag) {
+        this.torrentName = torrentName;
+        this.encoded = encoded;
+        this.savePath = savePath;
+        this.isSeeder = isSeeder;
+        this.maxUnchoked = maxUnchoked;
+        this.tag = tag;
+        this.label = MetricsRegistry.label("torrent", torrentName);
+    }
+
+    public byte[] getInfoHash() {
+        return infoHash;
+    }
+
+    public byte[] getHandshakeTemplate() {
+        return handshakeTemplate;
+    }
+
+    /* setCounters:  count a peer's PIECE bytes toward this torrent's */
+    /* totals; before its reader or writer starts */
+    public void setCounters(BitPeer peer) {
+        peer.setCounters(new Counter(downloaded), new Counter(uploaded));
+    }
+
+    /* getNumPeers:  connected peers; read without clientLock */
+    public int getNumPeers() {
+        return peerList.size();
+    }
+
+    /* init: parse file metadata from METAINFO and open the file */
+    /* not called with clientLock, as nothing is shared yet */
+    /* return: 0 on success, -1 on failure */
+    /* success ==> initialized: fileLength, pieceLength, storage, pieces */
+    public int init(boolean checkOnStart, boolean useMappedStorage) {
+        BObject[] metainfo;
+        try {
+            metainfo = BDecoder.read(encoded);
+        } catch (RuntimeException ex) {
+            Log.error("error: invalid .torrent file: " + ex.getMessage());
+            return -1;
+        }
+        if (metainfo.length != 1 || !(metainfo[0] instanceof BDict)) {
+            Log.error("error: invalid .torrent file");
+            return -1;
+        }
+        BDict metaDict = (BDict) metainfo[0];
+        // (a) parse the info dictionary within metaDict
+        if (metaDict.containsKey("info")) {
+            if (!(metaDict.get("info") instanceof BDict infoDict)) {
+                Log.error("error: invalid info field in .torrent file");
+                return -1;
+            }
+            // hash the info dict's bytes as they appear in the file, once;
+            // failing that, its canonical encoding
+            ByteBuffer infoRaw = infoDict.getRaw();
+            if (infoRaw == null) {
+                infoRaw = ByteBuffer.wrap(BEncoder.toBytes(infoDict));
+            }
+            infoHash = BitLibrary.getSHA1(infoRaw);
+            handshakeTemplate = BitPeer.getHandshakeTemplate(infoHash);
+
+            // (i) length field, or the files of a multi-file torrent
+            BObject files = infoDict.get("files");
+            if (files instanceof BList fileList) {
+                if (parseFiles(fileList) == -1) {
+                    return -1;
+                }
+            } else if (infoDict.get("length") instanceof BNumber len) {
+                fileLength = len.getValue();
+            } else {
+                Log.error("error: invalid length in .torrent file");
+                return -1;
+            }
+            Log.debug("got fileLength " + fileLength);
+
+            // (ii) piece length field
+            BObject plen = infoDict.get("piece length");
+            if (plen == null) {
+                Log.error("error: invalid piece length in .torrent file");
+                return -1;
+            }
+            pieceLength = Integer.parseInt(plen.print());
+            Log.debug("got pieceLength " + pieceLength);
+            numPieces = (int) (fileLength / pieceLength);
+            if (fileLength % pieceLength > 0) {
+                ++numPieces;
+            }
+            Log.debug("got numPieces " + numPieces);
+
+            // (iii) suggested save name field ==> save at DNLD_DIR/<sug_name>
+            BObject sname = infoDict.get("name");
+            if (sname != null && savePath == null) {    // -s flag not used
+                savePath = BitClient.DNLD_DIR + sname.print();
+                Log.debug("got savePath " + savePath);
+            }
+
+            // (iv) SHA1 values for pieces
+            BObject sha = infoDict.get("pieces");
+            if (!(sha instanceof BString shaString)) {
+                Log.error("error: invalid SHA1 encoding of pieces");
+                return -1;
+            }
+            pieceHashes = shaString.getBytes();
+            if (pieceHashes.length != numPieces * SHA_LENGTH) {
+                Log.error("error: expected " + numPieces + " SHA1 hashes");
+                return -1;
+            }
+            if (isDebug()) {
+                Log.debug("Got the following SHA1 pieces:");
+                for (int i = 0; i < numPieces; ++i) {
+                    Log.debug(BitLibrary.bytesToHex(Arrays.copyOfRange(pieceHashes,
+                            SHA_LENGTH * i, SHA_LENGTH * (i + 1))));
+                }
+            }
+
+            // (v) bitfield
+            localBitfield = new Bitfield(numPieces);
+            if (isSeeder) {
+                Log.debug("I AM A SEEDER");
+                localBitfield.setAll();
+            }
+        } else {
+            Log.error("error: no info field specified in .torrent file");
+            return -1;
+        }
+        // (b) get tracker URL
+        BObject tracker = metaDict.get("announce");
+        if (tracker != null) {
+            trackerURL = tracker.print();
+        }
+        Log.debug("got tracker URL " + trackerURL);
+        // (c) initialize torrent file for reading/writing
+        if (savePath == null) {
+            Log.error("error: no save location specified");  // .torrent nor CLI
+            return -1;
+        }
+        if (isSeeder) {
+            // change to UPLD_DIR for a seeder
+            savePath = savePath.substring(savePath.lastIndexOf('/') + 1);
+            savePath = BitClient.UPLD_DIR + savePath;
+            Log.debug("Seeder now has savePath = " + savePath);
+            // make sure each file exists and has proper length
+            File source = new File(savePath);
+            List<File> sourceFiles = getDataFiles(source);
+            for (int i = 0; i < sourceFiles.size(); ++i) {
+                File sourceFile = sourceFiles.get(i);
+                long expected = (filePaths == null) ? fileLength : fileLengths[i];
+                if (!sourceFile.isFile()) {
+                    Log.error("error: seeder does not have " + sourceFile);
+                    return -1;
+                } else if (sourceFile.length() != expected) {
+                    Log.error("error: file length differs from torrent file specs");
+                    return -1;
+                }
+            }
+            try {
+                storage = openStorage(source, false, useMappedStorage);
+                Log.debug("Seeder opened file at " + source);
+            } catch (IOException ex) {
+                Log.error("error: seeder could not open " + savePath);
+                return -1;
+            }
+        } else {
+            // pick up an earlier download from its resume file, before
+            // opening the file can touch it
+            File target = new File(savePath);
+            List<File> targetFiles = getDataFiles(target);
+            resume = new BitResume(target, targetFiles, fileLength, pieceLength);
+            if (!checkOnStart && resume.load(localBitfield, downloading)) {
+                Log.info(BitLibrary.getTimeString() + ": " + tag + "RESUMED WITH "
+                        + localBitfield.cardinality() + " OF " + numPieces
+                        + " PIECES");
+                isSeeder = localBitfield.isComplete();
+            } else if (hasData(targetFiles)) {
+                checkOnStart = true;    // no usable resume data, so hash it
+            }
+            try {
+                storage = openStorage(target, true, useMappedStorage);
+                Log.debug("Leecher opened new file at " + savePath);
+            } catch (IOException ex) {
+                Log.error("error: client could not open " + savePath);
+                return -1;
+            }
+        }
+
+        // (d) hash on the session's pool, and pick up where we left off
+        verifier = new BitVerifier(storage, pieceHashes, pieceLength, fileLength,
+                BitClient.verifyPool, BitClient.workSignal);
+        initMetrics();
+        if (checkOnStart) {
+            recheck();
+        }
+        picker = new BitPicker(numPieces);
+        choker = new BitChoker(maxUnchoked);
+        for (int i = localBitfield.nextSetBit(0); i >= 0;
+                i = localBitfield.nextSetBit(i + 1)) {
+            picker.setWanted(i, false);
+        }
+        for (BitPiece piece : downloading.values()) {
+            picker.setWanted(piece.getIndex(), false);
+            if (piece.isComplete()) {
+                // written but not verified before the restart
+                verifier.submit(piece.getIndex(), isValid -> {
+                    finishPiece(piece, isValid);
+                });
+            }
+        }
+        if (resume != null) {
+            lastResumeSave = System.currentTimeMillis();
+        }
+        bytesLeft = getBytesLeft();
+        return 0;
+    }
+
+    /* startTracker:  announce to the torrent's tracker, if it has an HTTP */
+    /* one, that we listen on port */
+    public void startTracker(int port) {
+        if (trackerURL == null) {
+            return;
+        }
+        if (!BitTracker.isSupported(trackerURL)) {
+            Log.info(tag + "warning: cannot announce to " + trackerURL);
+            return;
+        }
+        tracker = new BitTracker(trackerURL, infoHash, port, uploaded, downloaded,
+                () -> bytesLeft, trackerQ, BitClient.workSignal);
+        tracker.start();
+    }
+
+    /* stopTracker:  announce that we are stopping */
+    /* return the tracker's thread, to wait on, or null */
+    public Thread stopTracker() {
+        if (tracker != null) {
+            tracker.stopThread();
+        }
+        return tracker;
+    }
+
+    /* hasTrackerPeers:  true if the tracker found peers not yet dialed */
+    /* called without clientLock */
+    public boolean hasTrackerPeers() {
+        synchronized (trackerQ) {
+            return !trackerQ.isEmpty();
+        }
+    }
+
+    /* pollTrackerPeer:  the next peer from the tracker not already */
+    /* dialed, which is then marked dialed; null if none */
+    public InetSocketAddress pollTrackerPeer() {
+        synchronized (trackerQ) {
+            InetSocketAddress addr;
+            while ((addr = trackerQ.poll()) != null) {
+                if (markDialed(addr)) {
+                    return addr;
+                }
+            }
+            return null;
+        }
+    }
+
+    /* markDialed:  record that we are connecting to addr */
+    /* return false if we already were */
+    public boolean markDialed(InetSocketAddress addr) {
+        return dialed.add(addr);
+    }
+
+    /* forgetPeer:  a dialed peer's connection failed or was lost, so the */
+    /* tracker may hand it out again */
+    public void forgetPeer(InetSocketAddress addr) {
+        dialed.remove(addr);
+    }
+
+    /* getBytesLeft:  bytes of the pieces not yet verified */
+    private long getBytesLeft() {
+        long have = (long) localBitfield.cardinality() * pieceLength;
+        if (localBitfield.get(numPieces - 1)) {
+            have -= pieceLength - getPieceLength(numPieces - 1);
+        }
+        return fileLength - have;
+    }
+
+    /* logInfo:  report what init found */
+    public void logInfo() {
+        Log.info(BitLibrary.getTimeString() + ": " + tag + "PARSED .TORRENT INFO");
+        Log.info("\t   LOCATION OF FILE " + savePath);
+        Log.info("\t   FILE OF LENGTH " + fileLength);
+        Log.info("\t   PCS. OF LENGTH " + pieceLength);
+        Log.info("\t   HAVE PIECES    " + localBitfield.cardinality()
+                + " OF " + numPieces);
+    }
+
+    /* initMetrics:  export this torrent's gauges, labeled with its name */
+    private void initMetrics() {
+        MetricsRegistry metrics = BitClient.metrics;
+        metrics.gauge("bt_verify_backlog", label,
+                "Pieces waiting for their hash check", () -> verifier.getBacklog());
+        metrics.gauge("bt_torrent_requests_outstanding", label,
+                "Block requests awaiting a PIECE", () -> numOutstanding);
+        metrics.gauge("bt_pieces", label,
+                "Pieces downloaded and verified", () -> localBitfield.cardinality());
+        metrics.gauge("bt_torrent_peers", label, "Connected peers", () -> peerList.size());
+        metrics.counter("bt_torrent_downloaded_bytes_total", label,
+                "Block bytes received in PIECE messages", downloaded);
+        metrics.counter("bt_torrent_uploaded_bytes_total", label,
+                "Block bytes sent in PIECE messages", uploaded);
+    }
+
+    /* step:  one pass of the session loop over this torrent */
+    /* return the number of events handled */
+    public int step(long now) {
+        // finish pieces that have been verified
+        int numProcessed = verifier.runCompletions();
+
+        // drop peers whose connection has been lost
+        boolean hasDropped = false;
+        Iterator<BitPeer> closedIt = peerList.iterator();
+        while (closedIt.hasNext()) {
+            BitPeer peer = closedIt.next();
+            if (peer.isClosed()) {
+                Log.info(BitLibrary.getTimeString() + ": " + tag + "DROPPED PEER AT "
+                        + peer.getIP());
+                if (!peer.remoteIsChoked) {
+                    --numUnchoked;
+                }
+                cancelRequests(peer);
+                if (peer.getBitfield() != null) {
+                    picker.removePeer(peer.getBitfield());
+                }
+                BitClient.metrics.removeLabels(getPeerLabel(peer));
+                BitClient.peerTimers.cancel(peer.getTimer());
+                BitClient.peerDropped(peer);
+                forgetPeer(new InetSocketAddress(peer.getIP(), peer.getPort()));
+                closedIt.remove();
+                hasDropped = true;
+            }
+        }
+        if (hasDropped && tracker != null && peerList.size() < MIN_PEERS) {
+            tracker.requestPeers();
+        }
+
+        // process one outstanding message for each peer
+        for (BitPeer peer : peerList) {
+            if (!peer.hasSendRoom()) {
+                continue;    // let its queued PIECE data drain first
+            }
+            BitMessage msg = peer.getNextMessage();
+            if (msg == null) {
+                continue;
+            }
+            ++numProcessed;
+            processMessage(peer, msg);
+        }
+        // update interest and requests for every peer
+        int outstanding = 0;
+        for (BitPeer peer : peerList) {
+            updatePeer(peer);
+            outstanding += peer.outstandingRequests.size();
+        }
+        numOutstanding = outstanding;
+        if (choker.isDue(now)) {
+            rechoke(now);
+        }
+        if (resume != null && !isSeeder && now - lastResumeSave >= RESUME_SAVE_MS) {
+            saveResume();
+        }
+        return numProcessed;
+    }
+
+    /* connectPeer:  connect to an outbound peer and exchange handshakes, */
+    /* each within its timeout */
+    /* called without clientLock; blocks on the connection */
+    /* return 0 on success, -1 on failure */
+    public int connectPeer(BitPeer peer, int connectTimeoutMs, int handshakeTimeoutMs) {
+        if (peer.connect(connectTimeoutMs) == -1) {
+            return -1;
+        }
+        peer.sendHandshake(handshakeTemplate);
+        BitMessage bfmsg;
+        synchronized (BitClient.clientLock) {
+            bfmsg = new BitMessage(BitMessage.MessageType.BITFIELD,
+                    localBitfield.copy());
+        }
+        BitClient.sendMessage(peer, bfmsg);
+        Log.info(BitLibrary.getTimeString() + ": " + tag + "HANDSHAKE INITIALIZED");
+        if (peer.receiveHandshake(handshakeTemplate, handshakeTimeoutMs) == -1) {
+            return -1;
+        }
+        Log.info(BitLibrary.getTimeString() + ": " + tag + "HANDSHAKE COMPLETE");
+        return 0;
+    }
+
+    /* addPeer:  start serving an outbound peer once connected */
+    public void addPeer(BitPeer peer, boolean unchoke) {
+        peerList.add(peer);
+        BitClient.numPeers.incrementAndGet();
+        BitClient.schedulePeer(peer);
+        registerPeer(peer);
+        if (unchoke) {
+            unchokeIfRoom(peer);
+        }
+    }
+
+    /* welcomePeer:  finish the handshake with a peer that connected to us */
+    /* its handshake has already been read and matched to this torrent */
+    public void welcomePeer(BitPeer peer) {
+        // add to peerList
+        Log.info(BitLibrary.getTimeString() + ": " + tag + "ADDED PEER AT "
+                + peer.getIP());
+        addPeer(peer, false);
+        // complete the handshake
+        peer.sendHandshake(handshakeTemplate);
+        Log.info(BitLibrary.getTimeString() + ": " + tag
+                + "COMPLETED HANDSHAKE WITH " + peer.getIP());
+        // send bitfield
+        BitMessage bitfieldMsg
+                = new BitMessage(BitMessage.MessageType.BITFIELD, localBitfield);
+        BitClient.sendMessage(peer, bitfieldMsg);
+        // unchoke if spots are available
+        unchokeIfRoom(peer);
+    }
+
+    /* registerPeer:  export a connected peer's metrics, labeled with its */
+    /* torrent and address; they are removed when the peer is dropped */
+    private void registerPeer(BitPeer peer) {
+        MetricsRegistry metrics = BitClient.metrics;
+        String peerLabel = getPeerLabel(peer);
+        metrics.counter("bt_peer_downloaded_bytes_total", peerLabel,
+                "Block bytes received in PIECE messages", peer.getDownloaded());
+        metrics.counter("bt_peer_uploaded_bytes_total", peerLabel,
+                "Block bytes sent in PIECE messages", peer.getUploaded());
+        metrics.rate("bt_peer_download_rate_bytes", peerLabel,
+                "Block bytes received per second", peer.getDownloaded());
+        metrics.rate("bt_peer_upload_rate_bytes", peerLabel,
+                "Block bytes sent per second", peer.getUploaded());
+        metrics.gauge("bt_peer_requests_outstanding", peerLabel,
+                "Block requests awaiting a PIECE", () -> peer.outstandingRequests.size());
+    }
+
+    private String getPeerLabel(BitPeer peer) {
+        return label + "," + MetricsRegistry.label("peer",
+                peer.getIP().getHostAddress() + ":" + peer.getPort());
+    }
+
+    /* unchokeIfRoom:  unchoke the peer if an unchoke slot is free */
+    /* between choking rounds, e.g., for a newly connected peer */
+    private void unchokeIfRoom(BitPeer peer) {
+        if (peer.remoteIsChoked && numUnchoked < maxUnchoked) {
+            setChoked(peer, false);
+        }
+    }
+
+    /* setChoked:  choke or unchoke a peer, keeping count of unchoked */
+    private void setChoked(BitPeer peer, boolean isChoked) {
+        if (peer.remoteIsChoked == isChoked) {
+            return;
+        }
+        peer.remoteIsChoked = isChoked;
+        numUnchoked += isChoked ? -1 : 1;
+        BitClient.sendMessage(peer, isChoked ? CHOKE_MSG : UNCHOKE_MSG);
+    }
+
+    /* rechoke:  unchoke the peers the choker picks this round, and choke */
+    /* the rest */
+    private void rechoke(long now) {
+        Set<BitPeer> unchoke = choker.rechoke(peerList, isSeeder, now);
+        for (BitPeer peer : peerList) {
+            setChoked(peer, !unchoke.contains(peer));
+        }
+        Log.debug(tag + "rechoked: " + unchoke.size() + " of " + peerList.size()
+                + " peers unchoked");
+    }
+
+    /* BitHandler:  handles one type of message received from a peer */
+    private interface BitHandler {
+        void handle(BitTorrent torrent, BitPeer peer, BitMessage msg);
+    }
+
+    /* handlers:  BitHandler of each MessageType, indexed by ordinal */
+    private static final BitHandler[]
+            handlers = new BitHandler[BitMessage.MessageType.values().length];
+
+    static {
+        handlers[BitMessage.MessageType.KEEP_ALIVE.ordinal()]
+                = (torrent, peer, msg) -> { };    // lastReceived stamped on arrival
+        handlers[BitMessage.MessageType.CHOKE.ordinal()] = BitTorrent::handleChoke;
+        handlers[BitMessage.MessageType.UNCHOKE.ordinal()] = BitTorrent::handleUnchoke;
+        handlers[BitMessage.MessageType.INTERESTED.ordinal()]
+                = BitTorrent::handleInterested;
+        handlers[BitMessage.MessageType.UNINTERESTED.ordinal()]
+                = BitTorrent::handleUninterested;
+        handlers[BitMessage.MessageType.HAVE.ordinal()] = BitTorrent::handleHave;
+        handlers[BitMessage.MessageType.BITFIELD.ordinal()] = BitTorrent::handleBitfield;
+        handlers[BitMessage.MessageType.REQUEST.ordinal()] = BitTorrent::handleRequest;
+        handlers[BitMessage.MessageType.PIECE.ordinal()] = BitTorrent::handlePiece;
+        handlers[BitMessage.MessageType.CANCEL.ordinal()] = BitTorrent::handleCancel;
+    }
+
+    /* processMessage:  handle one message received from a peer */
+    public void processMessage(BitPeer peer, BitMessage msg) {
+        if (isDebug()) {
+            Log.debug(BitLibrary.getTimeString() + ": " + tag + "RECEIVED MESSAGE TYPE "
+                    + msg.getType() + " FROM " + peer.getIP());
+        }
+        BitClient.messagesReceived[msg.getType().ordinal()].inc();
+        BitHandler handler = handlers[msg.getType().ordinal()];
+        if (handler == null) {
+            throw new RuntimeException("Invalid MessageType received");
+        }
+        handler.handle(this, peer, msg);
+    }
+
+    private void handleChoke(BitPeer peer, BitMessage msg) {
+        Log.debug("CHOKE Message");
+        peer.localIsChoked = true;
+        cancelRequests(peer);    // peer discards them
+    }
+
+    private void handleUnchoke(BitPeer peer, BitMessage msg) {
+        Log.debug("UNCHOKE Message");
+        peer.localIsChoked = false;
+    }
+
+    private void handleInterested(BitPeer peer, BitMessage msg) {
+        Log.debug("INTERESTED Message");
+        peer.remoteIsInterested = true;
+        unchokeIfRoom(peer);
+    }
+
+    private void handleUninterested(BitPeer peer, BitMessage msg) {
+        Log.debug("UNINTERESTED Message");
+        peer.remoteIsInterested = false;
+    }
+
+    private void handleHave(BitPeer peer, BitMessage msg) {
+        int index = msg.getIndex();
+        if (index < 0 || index >= numPieces) {
+            Log.debug("warning: peer has unknown piece " + index);
+            return;
+        }
+        if (peer.getBitfield() == null) {
+            peer.setBitfield(new Bitfield(numPieces));    // sent no BITFIELD
+        }
+        if (peer.addToBitfield(index)) {
+            picker.addHave(index);
+        }
+        if (isDebug()) {
+            Log.debug(BitLibrary.getTimeString()
+                    + ": PEER " + peer.getIP()
+                    + " HAS "
+                    + BitLibrary.getBitString(peer.getBitfield()));
+        }
+        // say interested if we don't have this piece
+        if (!localBitfield.get(index)) {
+            setInterested(peer);
+        } else if (peer.getBitfield().isComplete()) {
+            // make room for others if peer is now seeder
+            setChoked(peer, true);
+        }
+    }
+
+    private void handleBitfield(BitPeer peer, BitMessage msg) {
+        Bitfield bf = msg.getBitfield();
+        if (bf.size() < numPieces) {
+            Log.debug("warning: BITFIELD too short, ignoring it");
+            return;
+        }
+        if (bf.size() > Bitfield.getWireLength(numPieces) * 8) {
+            Log.error("error: BITFIELD too long, dropping peer at " + peer.getIP());
+            peer.close();    // BEP 3: the wrong length drops the connection
+            return;
+        }
+        bf.truncate(numPieces);    // drop the pad bits
+        if (peer.getBitfield() != null) {
+            picker.removePeer(peer.getBitfield());    // replaces the old one
+        }
+        peer.setBitfield(bf);
+        picker.addPeer(bf);
+        if (isDebug()) {
+            Log.debug(BitLibrary.getTimeString()
+                    + ": PEER " + peer.getIP()
+                    + " HAS "
+                    + BitLibrary.getBitString(peer.getBitfield()));
+        }
+        // say interested if the peer has a piece we don't
+        if (bf.nextSetBitAndNot(localBitfield, 0) >= 0) {
+            setInterested(peer);
+        }
+    }
+
+    /* setInterested:  tell the peer we are interested, once */
+    private void setInterested(BitPeer peer) {
+        if (!peer.localIsInterested) {
+            peer.localIsInterested = true;
+            BitClient.sendMessage(peer, new BitMessage(BitMessage.MessageType.INTERESTED));
+        }
+    }
+
+    private void handleRequest(BitPeer peer, BitMessage msg) {
+        if (isDebug()) {
+            Log.debug("REQUEST Message: Peer wants piece " + msg.getIndex()
+                    + " at " + msg.getBegin());
+        }
+        int index = msg.getIndex();
+        if (peer.remoteIsChoked) {
+            Log.debug("But peer is choked, not sending");
+        } else if (index < 0 || index >= numPieces) {
+            Log.debug("warning: peer requested unknown piece " + index);
+        } else if (!localBitfield.get(index)) {
+            // peer has incorrect bitfield info, send another
+            Log.debug("warning: peer incorrectly thinks we have " + index);
+            BitClient.sendMessage(peer, new BitMessage(BitMessage.MessageType.BITFIELD,
+                    localBitfield));
+        } else if (msg.getBegin() < 0 || msg.getBlockLength() <= 0
+                || msg.getBlockLength() > MAX_BLOCK_REQUEST
+                || (long) msg.getBegin() + msg.getBlockLength()
+                        > getPieceLength(index)) {
+            Log.debug("warning: peer requested block outside the piece");
+        } else {
+            // stream the block straight from the file to the socket
+            long position = (long) index * pieceLength + msg.getBegin();
+            peer.sendPiece(index, msg.getBegin(), storage,
+                    position, msg.getBlockLength());
+            BitClient.messagesSent[BitMessage.MessageType.PIECE.ordinal()].inc();
+            if (isDebug()) {
+                Log.debug(BitLibrary.getTimeString()
+                        + ": SENT PIECE " + index
+                        + " TO " + peer.getIP());
+            }
+        }
+    }
+
+    /* handleCancel:  drop the PIECE reply to a REQUEST if still queued, */
+    /* e.g., the peer got the block from someone else in endgame */
+    private void handleCancel(BitPeer peer, BitMessage msg) {
+        if (peer.cancelPiece(msg.getIndex(), msg.getBegin(), msg.getBlockLength())) {
+            Log.debug("CANCEL Message: dropped piece " + msg.getIndex()
+                    + " at " + msg.getBegin());
+        }
+    }
+
+    private void handlePiece(BitPeer peer, BitMessage msg) {
+        int index = msg.getIndex();
+        BitPiece piece = downloading.get(index);
+        int blockLength = msg.getBlock().remaining();
+        peer.onPieceReceived(blockLength, System.currentTimeMillis());
+        if (piece == null || !piece.isExpected(msg.getBegin(), blockLength)) {
+            Log.debug("warning: received block not expected");
+            peer.takeRequest(index, msg.getBegin());
+            msg.release();
+            return;
+        }
+        BitPiece.Block req = peer.takeRequest(index, msg.getBegin());
+        long now = System.nanoTime();
+        if (req != null) {
+            peer.onBlockReceived(req, now);
+            BitClient.requestLatency.observe((now - req.requestedAt) / 1000);
+        }
+        piece.markReceived(msg.getBegin());
+        if (isEndgame) {
+            cancelDuplicates(index, msg.getBegin());
+        }
+        // write at the block's position in the file, off this thread
+        long position = (long) index * pieceLength + msg.getBegin();
+        BitClient.diskIO.submitWrite(storage, position, msg.getBlock(), err -> {
+            BitClient.writeLatency.observe((System.nanoTime() - now) / 1000);
+            finishBlock(piece, msg, err);
+        });
+    }
+
+    /* cancelDuplicates:  CANCEL a block just received with the other peers */
+    /* it was asked of in endgame */
+    private void cancelDuplicates(int index, int begin) {
+        for (BitPeer p : peerList) {
+            BitPiece.Block dup = p.takeRequest(index, begin);
+            if (dup != null) {
+                BitClient.sendMessage(p, new BitMessage(BitMessage.MessageType.CANCEL,
+                        index, begin, dup.length));
+            }
+        }
+    }
+
+    /* finishBlock:  record a block once it is on disk, and have its piece */
+    /* verified once all of the piece's blocks are */
+    private void finishBlock(BitPiece piece, BitMessage msg, IOException err) {
+        msg.release();    // block buffer goes back to the pool
+        if (err != null) {
+            Log.error("error: could not write piece " + msg.getIndex()
+                    + ": " + err.getMessage());
+            piece.markFailed(msg.getBegin());    // request it again
+            return;
+        }
+        if (piece.markWritten(msg.getBegin())) {
+            // hash it as stored before telling anyone we have it
+            long submitted = System.nanoTime();
+            verifier.submit(piece.getIndex(), isValid -> {
+                BitClient.verifyLatency.observe((System.nanoTime() - submitted) / 1000);
+                finishPiece(piece, isValid);
+            });
+        }
+    }
+
+    /* finishPiece:  record a piece once it has been verified, or start */
+    /* it over if its hash is wrong */
+    private void finishPiece(BitPiece piece, boolean isValid) {
+        downloading.remove(piece.getIndex());
+        if (!isValid) {
+            Log.error("error: piece " + piece.getIndex() + " failed its hash check");
+            picker.setWanted(piece.getIndex(), true);    // download it again
+            isEndgame = false;
+            return;
+        }
+        // update bitfield, send HAVE response to ALL peers
+        localBitfield.set(piece.getIndex());
+        bytesLeft -= getPieceLength(piece.getIndex());
+        BitMessage haveMsg
+                = new BitMessage(BitMessage.MessageType.HAVE,
+                piece.getIndex());
+        for (BitPeer p : peerList) {
+            BitClient.sendMessage(p, haveMsg);
+        }
+        Log.info(BitLibrary.getTimeString() + ": " + tag + "NOW HAVE PIECE "
+                + piece.getIndex() + ", " + localBitfield.cardinality()
+                + " OF " + numPieces);
+
+        // become a seeder if all downloaded
+        if (localBitfield.isComplete()) {
+            Log.info(BitLibrary.getTimeString() + ": " + tag + "DOWNLOAD COMPLETE");
+            saveResume();
+            if (tracker != null) {
+                tracker.completed();
+            }
+            if (isDebug()) {
+                Log.debug("local bitfield "
+                        + BitLibrary.getBitString(localBitfield));
+                Log.debug("block pool " + BitClient.blockPool.getStats());
+            }
+            isSeeder = true;
+        }
+    }
+
+    /* cancelRequests:  make the blocks outstanding with a peer that */
+    /* choked us or was dropped requestable from other peers */
+    private void cancelRequests(BitPeer peer) {
+        for (BitPiece.Block req : peer.outstandingRequests) {
+            BitPiece piece = downloading.get(req.index);
+            if (piece != null) {
+                piece.cancelRequest(req.begin);
+            }
+        }
+        peer.outstandingRequests.clear();
+    }
+
+    /* updatePeer:  request blocks from peer */
+    /* (interest is updated as the peer's BITFIELD and HAVEs arrive) */
+    public void updatePeer(BitPeer peer) {
+        // keep the peer's pipeline of block requests full, unless
+        // the disk is behind on writing the blocks already received
+        if (isSeeder || peer.localIsChoked || !peer.localIsInterested) {
+            return;
+        }
+        int depth = peer.getPipelineDepth();
+        while (peer.outstandingRequests.size() < depth && BitClient.diskIO.hasRoom()) {
+            BitPiece.Block req = nextRequest(peer);
+            if (req == null) {
+                break;
+            }
+            req.requestedAt = System.nanoTime();
+            peer.outstandingRequests.add(req);
+            BitClient.sendMessage(peer, new BitMessage(BitMessage.MessageType.REQUEST,
+                    req.index, req.begin, req.length));
+        }
+    }
+
+    /* nextRequest:  pick the next block to request from a peer, finishing */
+    /* pieces already started before starting a new one */
+    /* return null if the peer has nothing more for us */
+    private BitPiece.Block nextRequest(BitPeer peer) {
+        Bitfield remoteBitfield = peer.getBitfield();
+        if (remoteBitfield == null) {
+            return null;
+        }
+        for (BitPiece piece : downloading.values()) {
+            if (piece.hasUnrequested() && remoteBitfield.get(piece.getIndex())) {
+                return piece.nextRequest();
+            }
+        }
+        int index = picker.pick(remoteBitfield);
+        if (index == -1) {
+            return nextEndgameRequest(peer);
+        }
+        BitPiece piece = new BitPiece(index, getPieceLength(index));
+        picker.setWanted(index, false);
+        downloading.put(index, piece);
+        return piece.nextRequest();
+    }
+
+    /* nextEndgameRequest:  once every block that can be requested has */
+    /* been, ask this peer too for a block still in flight elsewhere, so */
+    /* the last pieces do not wait on the slowest peer; whichever copy */
+    /* arrives first wins and the others are CANCELed */
+    /* return null if not in endgame or the peer has nothing to add */
+    private BitPiece.Block nextEndgameRequest(BitPeer peer) {
+        if (picker.hasAvailable()) {
+            return null;    // another peer has a piece no one is fetching
+        }
+        for (BitPiece piece : downloading.values()) {
+            if (piece.hasUnrequested()) {
+                return null;
+            }
+        }
+        if (!isEndgame) {
+            isEndgame = true;
+            Log.info(BitLibrary.getTimeString() + ": " + tag + "ENTERING ENDGAME");
+        }
+        Bitfield remoteBitfield = peer.getBitfield();
+        for (BitPiece piece : downloading.values()) {
+            if (!remoteBitfield.get(piece.getIndex())) {
+                continue;
+            }
+            for (int begin = piece.nextPending(0); begin >= 0;
+                    begin = piece.nextPending(begin + BitPiece.BLOCK_SIZE)) {
+                if (!peer.hasRequest(piece.getIndex(), begin)) {
+                    return piece.getBlock(begin);
+                }
+            }
+        }
+        return null;
+    }
+
+    /* getPieceLength:  length of a piece; the last may be shorter */
+    private int getPieceLength(int index) {
+        if (index == numPieces - 1 && fileLength % pieceLength > 0) {
+            return (int) (fileLength % pieceLength);
+        }
+        return pieceLength;
+    }
+
+    /* recheck:  hash the data already in the file across all cores and */
+    /* keep the pieces that match */
+    private void recheck() {
+        Log.info(BitLibrary.getTimeString() + ": " + tag + "CHECKING " + savePath);
+        long start = System.currentTimeMillis();
+        localBitfield = verifier.recheck();
+        downloading.clear();
+        Log.info(BitLibrary.getTimeString() + ": " + tag + "CHECKED IN "
+                + (System.currentTimeMillis() - start) + " MS, HAVE "
+                + localBitfield.cardinality() + " OF " + numPieces);
+        if (isSeeder && !localBitfield.isComplete()) {
+            Log.error("warning: seeding only the pieces that passed the check");
+        }
+        isSeeder = localBitfield.isComplete();
+    }
+
+    /* saveResume:  flush the file, then record what it holds */
+    private void saveResume() {
+        if (resume == null) {
+            return;
+        }
+        lastResumeSave = System.currentTimeMillis();
+        byte[] snapshot = resume.snapshot(localBitfield, downloading.values());
+        BitClient.diskIO.submitFlush(storage, err -> {
+            if (err != null) {
+                Log.error("error: could not flush " + savePath);
+                return;
+            }
+            try {
+                resume.save(snapshot);
+            } catch (IOException ex) {
+                Log.error("error: could not save resume data: " + ex.getMessage());
+            }
+        });
+    }
+
+    /* saveResumeOnExit:  record the download's state at shutdown, once */
+    /* the session's disk threads have stopped */
+    public void saveResumeOnExit() {
+        if (resume == null) {
+            return;
+        }
+        try {
+            storage.flush();
+            resume.save(resume.snapshot(localBitfield, downloading.values()));
+        } catch (IOException ex) {
+            Log.error("error: could not save resume data: " + ex.getMessage());
+        }
+    }
+
+    /* openStorage:  open the file to transfer with the chosen backend */
+    private PieceStorage openStorage(File source, boolean writable,
+                                     boolean useMappedStorage) throws IOException {
+        if (filePaths != null) {
+            if (useMappedStorage) {
+                Log.info("warning: not memory-mapping a multi-file torrent");
+            }
+            return new MultiFileStorage(getDataFiles(source), fileLengths, writable);
+        }
+        if (useMappedStorage) {
+            return new MappedStorage(source, fileLength, writable);
+        }
+        return new RandomAccessStorage(source, fileLength, writable);
+    }
+
+    /* parseFiles:  the files list of a multi-file torrent, each with a */
+    /* length and a path relative to the torrent's directory */
+    /* return: 0 on success, -1 on failure */
+    private int parseFiles(BList fileList) {
+        filePaths = new String[fileList.size()];
+        fileLengths = new long[fileList.size()];
+        fileLength = 0;
+        for (int i = 0; i < fileList.size(); ++i) {
+            if (!(fileList.get(i) instanceof BDict file)
+                    || !(file.get("length") instanceof BNumber len)
+                    || len.getValue() < 0
+                    || !(file.get("path") instanceof BList path)
+                    || path.isEmpty()) {
+                Log.error("error: invalid file " + i + " in .torrent file");
+                return -1;
+            }
+            StringBuilder sb = new StringBuilder();
+            for (BObject part : path) {
+                String name = (part instanceof BString str) ? str.getString() : "";
+                // a path may not leave the torrent's directory
+                if (name.isEmpty() || name.equals(".") || name.equals("..")
+                        || name.contains("/") || name.contains("\\")) {
+                    Log.error("error: invalid path of file " + i + " in .torrent file");
+                    return -1;
+                }
+                if (sb.length() > 0) {
+                    sb.append(File.separatorChar);
+                }
+                sb.append(name);
+            }
+            filePaths[i] = sb.toString();
+            fileLengths[i] = len.getValue();
+            fileLength += fileLengths[i];
+        }
+        Log.debug("got " + filePaths.length + " files");
+        return 0;
+    }
+
+    /* getDataFiles:  the files holding the torrent's data when saved at */
+    /* location: location itself, or for a multi-file torrent the files */
+    /* under the directory location */
+    private List<File> getDataFiles(File location) {
+        if (filePaths == null) {
+            return List.of(location);
+        }
+        List<File> files = new ArrayList<>(filePaths.length);
+        for (String path : filePaths) {
+            files.add(new File(location, path));
+        }
+        return files;
+    }
+
+    /* hasData:  true if every data file is there at its full length */
+    private boolean hasData(List<File> files) {
+        for (int i = 0; i < files.size(); ++i) {
+            long expected = (filePaths == null) ? fileLength : fileLengths[i];
+            if (!files.get(i).isFile() || files.get(i).length() != expected) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isDebug() {
+        return Log.isEnabled(Log.Level.DEBUG);
+    }
+}
@@ -0,0 +1,342 @@
+/* BitTracker.java:  runnable class announcing a torrent to its tracker */
+/* Christopher Chute */
+
+/* one thread per torrent makes the HTTP announces of BEP 3: "started" */
+/* first, then one every interval the tracker asks for, "completed" when */
+/* the download finishes and "stopped" on the way out. peers from each */
+/* response go on a queue for the client loop to connect to, much as */
+/* BitWelcomer queues accepted sockets. compact peer lists (BEP 23) are */
+/* read straight from the response bytes, six at a time */
+
+import util.bencode.BDecoder;
+import util.bencode.BDict;
+import util.bencode.BList;
+import util.bencode.BNumber;
+import util.bencode.BObject;
+import util.bencode.BString;
+import util.lib.Log;
+import util.metrics.Counter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.function.LongSupplier;
+
+public final class BitTracker extends Thread {
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    private static final int READ_TIMEOUT_MS = 10000;
+    private static final int MAX_RESPONSE = 1024 * 1024;   // bytes we will read
+    private static final int NUM_WANT = 50;                // peers to ask for
+    private static final long DEFAULT_INTERVAL_MS = 30 * 60 * 1000;
+    private static final long DEFAULT_MIN_INTERVAL_MS = 5 * 60 * 1000;
+    private static final long LEAST_INTERVAL_MS = 30 * 1000;  // floor on both
+    private static final long RETRY_MS = 15 * 1000;        // first retry
+    private static final long MAX_RETRY_MS = 30 * 60 * 1000;
+    private static final byte[] PEER_ID = generatePeerID();
+
+    /* Event:  the event parameter of an announce */
+    private enum Event {
+        NONE(null), STARTED("started"), COMPLETED("completed"), STOPPED("stopped");
+
+        private final String param;
+
+        Event(String param) {
+            this.param = param;
+        }
+    }
+
+    private final String announceURL;
+    private final byte[] infoHash;
+    private final int port;                    // our welcome port
+    private final Counter uploaded;            // this torrent's bytes
+    private final Counter downloaded;
+    private final LongSupplier left;           // bytes still to verify
+    private final LinkedList<InetSocketAddress> peerQ;  // found, not yet dialed
+    private final BitSignal workSignal;        // wakes the client loop
+    private long intervalMs = DEFAULT_INTERVAL_MS;
+    private long minIntervalMs = DEFAULT_MIN_INTERVAL_MS;
+    private String trackerID = null;           // echoed back if given
+    private long lastAnnounce = 0;             // guarded by this
+    private boolean isCompleted = false;       // guarded by this
+    private boolean wantsPeers = false;        // guarded by this
+    private volatile boolean isStopped = false;
+
+    public BitTracker(String announceURL, byte[] infoHash, int port,
+                      Counter uploaded, Counter downloaded, LongSupplier left,
+                      final LinkedList<InetSocketAddress> peerQ,
+                      final BitSignal workSignal) {
+        super("BitTracker");
+        setDaemon(true);
+        this.announceURL = announceURL;
+        this.infoHash = infoHash;
+        this.port = port;
+        this.uploaded = uploaded;
+        this.downloaded = downloaded;
+        this.left = left;
+        this.peerQ = peerQ;
+        this.workSignal = workSignal;
+    }
+
+    /* isSupported:  true for an announce URL this class can talk to */
+    public static boolean isSupported(String announceURL) {
+        return announceURL != null
+                && (announceURL.startsWith("http://") || announceURL.startsWith("https://"));
+    }
+
+    /* completed:  tell the tracker the download has finished */
+    public synchronized void completed() {
+        isCompleted = true;
+        notifyAll();
+    }
+
+    /* requestPeers:  announce early for more peers, but no sooner after */
+    /* the last announce than the tracker's min interval */
+    public synchronized void requestPeers() {
+        wantsPeers = true;
+        notifyAll();
+    }
+
+    /* stopThread:  send "stopped" if "started" got through, then exit */
+    public synchronized void stopThread() {
+        isStopped = true;
+        notifyAll();
+    }
+
+    /* run:  announce until stopped */
+    public void run() {
+        Event event = Event.STARTED;
+        boolean isStarted = false;
+        long retryMs = RETRY_MS;
+        while (!isStopped) {
+            long waitMs;
+            try {
+                announce(event);
+                isStarted = true;
+                event = Event.NONE;
+                retryMs = RETRY_MS;
+                waitMs = intervalMs;
+            } catch (IOException | RuntimeException ex) {
+                Log.error("warning: announce to " + announceURL + " failed: "
+                        + ex.getMessage());
+                waitMs = retryMs;    // the same event, after a while
+                retryMs = Math.min(retryMs * 2, MAX_RETRY_MS);
+            }
+            event = await(waitMs, event);
+        }
+        if (isStarted) {
+            try {
+                announce(Event.STOPPED);
+            } catch (IOException | RuntimeException ex) {
+                Log.debug("announce of stopped failed: " + ex.getMessage());
+            }
+        }
+    }
+
+    /* await:  sleep until the next announce is due, and return its event */
+    private synchronized Event await(long waitMs, Event event) {
+        lastAnnounce = System.currentTimeMillis();
+        long deadline = lastAnnounce + waitMs;
+        while (!isStopped) {
+            if (isCompleted && event != Event.STARTED) {
+                isCompleted = false;
+                return Event.COMPLETED;
+            }
+            long now = System.currentTimeMillis();
+            long due = deadline;
+            if (wantsPeers) {
+                due = Math.min(due, lastAnnounce + minIntervalMs);
+            }
+            if (now >= due) {
+                wantsPeers = false;
+                return event;
+            }
+            try {
+                wait(due - now);
+            } catch (InterruptedException ignored) {
+            }
+        }
+        return event;
+    }
+
+    /* announce:  one GET to the tracker; queue the peers it returns */
+    private void announce(Event event) throws IOException {
+        StringBuilder url = new StringBuilder(announceURL);
+        url.append(announceURL.indexOf('?') < 0 ? '?' : '&');
+        url.append("info_hash=");
+        appendEscaped(url, infoHash);
+        url.append("&peer_id=");
+        appendEscaped(url, PEER_ID);
+        url.append("&port=").append(port);
+        url.append("&uploaded=").append(uploaded.get());
+        url.append("&downloaded=").append(downloaded.get());
+        url.append("&left=").append(left.getAsLong());
+        url.append("&compact=1");
+        url.append("&numwant=").append(event == Event.STOPPED ? 0 : NUM_WANT);
+        if (event.param != null) {
+            url.append("&event=").append(event.param);
+        }
+        if (trackerID != null) {
+            url.append("&trackerid=");
+            appendEscaped(url, trackerID.getBytes(StandardCharsets.UTF_8));
+        }
+        Log.debug("announcing " + url);
+
+        HttpURLConnection conn
+                = (HttpURLConnection) URI.create(url.toString()).toURL().openConnection();
+        conn.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        conn.setReadTimeout(READ_TIMEOUT_MS);
+        byte[] body;
+        try {
+            if (conn.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                throw new IOException("HTTP " + conn.getResponseCode());
+            }
+            try (InputStream in = conn.getInputStream()) {
+                body = in.readNBytes(MAX_RESPONSE + 1);
+            }
+        } finally {
+            conn.disconnect();
+        }
+        if (body.length > MAX_RESPONSE) {
+            throw new IOException("response over " + MAX_RESPONSE + " bytes");
+        }
+        if (event != Event.STOPPED) {
+            parseResponse(body);
+        }
+    }
+
+    /* parseResponse:  take the intervals and peers from a response */
+    private void parseResponse(byte[] body) throws IOException {
+        BObject[] objs = BDecoder.read(body);
+        if (objs.length != 1 || !(objs[0] instanceof BDict response)) {
+            throw new IOException("response is not a dictionary");
+        }
+        if (response.get("failure reason") instanceof BString reason) {
+            throw new IOException("tracker says " + reason.getString());
+        }
+        if (response.get("warning message") instanceof BString warning) {
+            Log.info("tracker warning: " + warning.getString());
+        }
+        if (response.get("min interval") instanceof BNumber min) {
+            minIntervalMs = Math.max(LEAST_INTERVAL_MS, min.getValue() * 1000);
+        }
+        if (response.get("interval") instanceof BNumber interval) {
+            intervalMs = Math.max(LEAST_INTERVAL_MS, interval.getValue() * 1000);
+        }
+        intervalMs = Math.max(intervalMs, minIntervalMs);
+        if (response.get("tracker id") instanceof BString id) {
+            trackerID = id.getString();
+        }
+
+        List<InetSocketAddress> found = new ArrayList<>();
+        BObject peers = response.get("peers");
+        if (peers instanceof BString compact) {
+            parseCompact(compact.getBuffer(), 4, found);
+        } else if (peers instanceof BList list) {
+            parseDicts(list, found);    // a tracker ignoring compact=1
+        }
+        if (response.get("peers6") instanceof BString compact6) {
+            parseCompact(compact6.getBuffer(), 16, found);
+        }
+        Log.debug("tracker returned " + found.size() + " peers");
+        if (found.isEmpty()) {
+            return;
+        }
+        synchronized (peerQ) {
+            peerQ.addAll(found);
+        }
+        workSignal.signal();
+    }
+
+    /* parseCompact:  peers packed as an address of addrLength bytes then */
+    /* a 2-byte port, both in network order */
+    private void parseCompact(ByteBuffer buf, int addrLength,
+                              List<InetSocketAddress> found) {
+        byte[] addr = new byte[addrLength];
+        while (buf.remaining() >= addrLength + 2) {
+            buf.get(addr);
+            int peerPort = buf.getShort() & 0xffff;
+            try {
+                addPeer(InetAddress.getByAddress(addr), peerPort, found);
+            } catch (UnknownHostException ignored) {
+                // cannot happen for a 4- or 16-byte address
+            }
+        }
+    }
+
+    /* parseDicts:  peers as a list of dictionaries with ip and port */
+    private void parseDicts(BList list, List<InetSocketAddress> found) {
+        for (BObject obj : list) {
+            if (obj instanceof BDict peer
+                    && peer.get("ip") instanceof BString ip
+                    && peer.get("port") instanceof BNumber peerPort) {
+                try {
+                    addPeer(InetAddress.getByName(ip.getString()),
+                            (int) peerPort.getValue(), found);
+                } catch (UnknownHostException ex) {
+                    Log.debug("tracker gave unknown host " + ip.getString());
+                }
+            }
+        }
+    }
+
+    /* addPeer:  keep a peer unless its port is invalid or it is us */
+    private void addPeer(InetAddress addr, int peerPort,
+                         List<InetSocketAddress> found) {
+        if (peerPort <= 0 || peerPort > 0xffff || (peerPort == port && isLocal(addr))) {
+            return;
+        }
+        found.add(new InetSocketAddress(addr, peerPort));
+    }
+
+    private static boolean isLocal(InetAddress addr) {
+        if (addr.isLoopbackAddress() || addr.isAnyLocalAddress()) {
+            return true;
+        }
+        try {
+            return NetworkInterface.getByInetAddress(addr) != null;
+        } catch (SocketException ex) {
+            return false;
+        }
+    }
+
+    /* appendEscaped:  bytes percent-encoded for a query string */
+    private static void appendEscaped(StringBuilder sb, byte[] bytes) {
+        final String hex = "0123456789ABCDEF";
+        for (byte b : bytes) {
+            int c = b & 0xff;
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+                    || (c >= '0' && c <= '9')
+                    || c == '-' || c == '_' || c == '.' || c == '~') {
+                sb.append((char) c);
+            } else {
+                sb.append('%').append(hex.charAt(c >> 4)).append(hex.charAt(c & 0xf));
+            }
+        }
+    }
+
+    /* generatePeerID:  this client's 20-byte ID, in Azureus style: */
+    /* client code and version, then random characters */
+    private static byte[] generatePeerID() {
+        final String chars = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
+        byte[] id = new byte[20];
+        byte[] prefix = "-BV0001-".getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(prefix, 0, id, 0, prefix.length);
+        SecureRandom random = new SecureRandom();
+        for (int i = prefix.length; i < id.length; ++i) {
+            id[i] = (byte) chars.charAt(random.nextInt(chars.length()));
+        }
+        return id;
+    }
+}
@@ -0,0 +1,147 @@
+/* BitVerifier.java:  checks pieces against their SHA1 hashes off the loop */
+/* Christopher Chute */
+
+/* pieces are hashed on the session's fork-join pool, one task per piece, */
+/* with one MessageDigest per worker thread. the expected hashes are */
+/* packed in one byte[numPieces * 20] table. like BitDiskIO, results */
+/* wait on a queue until the client loop runs their callbacks via */
+/* runCompletions() */
+
+import util.lib.Bitfield;
+import util.storage.PieceStorage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+
+public class BitVerifier {
+    public static final int SHA_LENGTH = 20;    // bytes in a SHA1 hash
+
+    private static final ThreadLocal<Hasher> hashers
+            = ThreadLocal.withInitial(Hasher::new);
+
+    private final PieceStorage storage;
+    private final byte[] hashes;                // piece i at [i*20, i*20+20)
+    private final int pieceLength;
+    private final long fileLength;
+    private final ForkJoinPool pool;            // shared by the session's torrents
+    private final BitSignal workSignal;         // wakes the client loop
+    private final ConcurrentLinkedQueue<Result> doneQ = new ConcurrentLinkedQueue<>();
+    private final LongAdder backlog = new LongAdder();    // submitted, not done
+
+    /* Hasher:  a worker thread's digest and its output, reused per piece */
+    private static class Hasher {
+        private final MessageDigest md;
+        private final byte[] digest = new byte[SHA_LENGTH];
+
+        private Hasher() {
+            try {
+                md = MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+    }
+
+    /* Result:  outcome of verifying one piece */
+    private static class Result {
+        private final boolean isValid;
+        private final Consumer<Boolean> done;
+
+        private Result(boolean isValid, Consumer<Boolean> done) {
+            this.isValid = isValid;
+            this.done = done;
+        }
+    }
+
+    /* BitVerifier:  hashes holds the 20-byte hash of every piece in order; */
+    /* pieces are hashed on pool, which other torrents' verifiers share */
+    public BitVerifier(PieceStorage storage, byte[] hashes, int pieceLength,
+                       long fileLength, ForkJoinPool pool, BitSignal workSignal) {
+        this.storage = storage;
+        this.hashes = hashes;
+        this.pieceLength = pieceLength;
+        this.fileLength = fileLength;
+        this.pool = pool;
+        this.workSignal = workSignal;
+    }
+
+    public int getNumPieces() {
+        return hashes.length / SHA_LENGTH;
+    }
+
+    /* submit:  verify a piece on the pool, then call done with the result */
+    public void submit(int index, Consumer<Boolean> done) {
+        backlog.increment();
+        pool.execute(() -> {
+            doneQ.offer(new Result(verify(index), done));
+            backlog.decrement();
+            workSignal.signal();
+        });
+    }
+
+    /* getBacklog:  pieces submitted and not yet verified */
+    public long getBacklog() {
+        return backlog.sum();
+    }
+
+    /* runCompletions:  run the callbacks of verified pieces on the */
+    /* caller's thread, e.g., the client loop holding clientLock */
+    /* return the number of callbacks run */
+    public int runCompletions() {
+        int n = 0;
+        Result result;
+        while ((result = doneQ.poll()) != null) {
+            ++n;
+            result.done.accept(result.isValid);
+        }
+        return n;
+    }
+
+    /* recheck:  verify every piece as stored across the pool's threads */
+    /* blocks until done; return which pieces matched their hashes */
+    public Bitfield recheck() {
+        boolean[] isValid = new boolean[getNumPieces()];
+        pool.submit(() -> IntStream.range(0, isValid.length).parallel()
+                .forEach(i -> isValid[i] = verify(i))).join();
+        Bitfield valid = new Bitfield(isValid.length);
+        for (int i = 0; i < isValid.length; ++i) {
+            if (isValid[i]) {
+                valid.set(i);
+            }
+        }
+        return valid;
+    }
+
+    /* verify:  hash a piece as stored, on the calling thread */
+    /* return true if it matches its expected hash */
+    public boolean verify(int index) {
+        long offset = (long) index * pieceLength;
+        int len = (int) Math.min(pieceLength, fileLength - offset);
+        Hasher hasher = hashers.get();
+        try {
+            // a mapped file's slice is a view of the piece, so it is hashed
+            // in place; other storage copies the piece into the slice
+            ByteBuffer data = storage.slice(offset, len);
+            if (data.remaining() < len) {
+                throw new IOException("piece past end of storage");
+            }
+            hasher.md.update(data);
+            hasher.md.digest(hasher.digest, 0, SHA_LENGTH);
+        } catch (IOException | DigestException ex) {
+            hasher.md.reset();
+            return false;
+        }
+        int at = index * SHA_LENGTH;
+        return Arrays.equals(hasher.digest, 0, SHA_LENGTH,
+                             hashes, at, at + SHA_LENGTH);
+    }
+}
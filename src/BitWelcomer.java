@@ -2,23 +2,99 @@
 /* main purpose is to provide non-blocking acceptance of new peers */
 /* Christopher Chute */
 
+/* one thread accepts connections and reads their handshakes, all over */
+/* non-blocking channels on its own Selector, so a peer that connects and */
+/* never sends its handshake costs a socket and a 68-byte buffer, not a */
+/* thread or the client loop. a handshake must arrive whole within */
+/* HANDSHAKE_TIMEOUT_MS, timed on a TimingWheel. connections past the */
+/* limit per IP, past the limit of pending handshakes, or past the */
+/* session's peer limit are closed as soon as they are accepted. only */
+/* peers whose handshake names a torrent we serve reach the welcome */
+/* queue, back in blocking mode and ready for the engine */
+
+import util.lib.Log;
+import util.lib.TimingWheel;
+import util.metrics.Counter;
+
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+
+public final class BitWelcomer extends Thread {
+    private static final int HANDSHAKE_SIZE = 68;
+    private static final long HANDSHAKE_TIMEOUT_MS = 10000;
+    private static final int MAX_PENDING = 256;   // handshakes being read
+    private static final int MAX_PER_IP = 8;      // inbound peers per address
+    private static final long TICK_MS = 250;      // deadline resolution
+
+    /* Admission:  a peer that has sent a valid handshake for torrent */
+    public static class Admission {
+        public final BitTorrent torrent;
+        public final BitPeer peer;
+
+        private Admission(BitTorrent torrent, BitPeer peer) {
+            this.torrent = torrent;
+            this.peer = peer;
+        }
+    }
+
+    /* Pending:  a connection whose handshake is still arriving */
+    private static class Pending {
+        private final SocketChannel channel;
+        private final InetAddress addr;
+        private final ByteBuffer handshake = ByteBuffer.allocate(HANDSHAKE_SIZE);
+        private SelectionKey key = null;
+        private TimingWheel.Timer<Pending> timer = null;
+        private BitTorrent torrent = null;        // set once handshaken
 
-public class BitWelcomer extends Thread {
-    private ServerSocket welcomeSocket = null;  // welcome new peers
-    private final LinkedList<Socket> welcomeQ; // pending new peers
+        private Pending(SocketChannel channel, InetAddress addr) {
+            this.channel = channel;
+            this.addr = addr;
+        }
+    }
+
+    private Selector selector = null;              // accepts and handshakes
+    private ServerSocketChannel welcomeChannel = null;  // welcome new peers
+    private final LinkedList<Admission> welcomeQ;  // admitted new peers
+    private final BitSignal workSignal;            // wakes the client loop
+    private final Function<byte[], BitTorrent> router;  // torrent of a handshake
+    private final BooleanSupplier hasRoom;         // false at the peer limit
+    private final TimingWheel<Pending> deadlines
+            = new TimingWheel<>(64, TICK_MS, System.currentTimeMillis());
+    private final HashMap<InetAddress, Integer> perIP = new HashMap<>(); // guarded by itself
+    private int numPending = 0;                    // this thread only
+    private volatile int pendingGauge = 0;         // numPending, for metrics
+    private final Counter refused = new Counter(); // closed before admission
     private volatile boolean isStopped = false;
 
-    public BitWelcomer(int welcomePort, final LinkedList<Socket> welcomeQ) {
+    public BitWelcomer(int welcomePort, final LinkedList<Admission> welcomeQ,
+                       final BitSignal workSignal, Function<byte[], BitTorrent> router,
+                       BooleanSupplier hasRoom) {
+        super("BitWelcomer");
+        setDaemon(true);
         this.welcomeQ = welcomeQ;
+        this.workSignal = workSignal;
+        this.router = router;
+        this.hasRoom = hasRoom;
 
         try {
-            welcomeSocket = new ServerSocket(welcomePort);
-            welcomeSocket.setSoTimeout(5000);
-            System.out.println("Client listening on port " + welcomePort);
+            selector = Selector.open();
+            welcomeChannel = ServerSocketChannel.open();
+            welcomeChannel.bind(new InetSocketAddress(welcomePort));
+            welcomeChannel.configureBlocking(false);
+            welcomeChannel.register(selector, SelectionKey.OP_ACCEPT);
+            Log.info("Client listening on port " + welcomePort);
         } catch (IOException ex) {
             ex.printStackTrace();
         }
@@ -26,23 +102,186 @@ public class BitWelcomer extends Thread {
 
     public void stopThread() {
         isStopped = true;
+        selector.wakeup();
+    }
+
+    /* getPending:  connections whose handshakes are being read */
+    public int getPending() {
+        return pendingGauge;
+    }
+
+    /* getRefused:  connections closed by a limit, a bad handshake or */
+    /* its deadline */
+    public Counter getRefused() {
+        return refused;
     }
 
-    /* run:  continually loop to accept new BitTorrent peers */
+    /* release:  an admitted peer from addr has been dropped */
+    public void release(InetAddress addr) {
+        synchronized (perIP) {
+            perIP.computeIfPresent(addr, (a, n) -> (n > 1) ? n - 1 : null);
+        }
+    }
+
+    /* run:  continually accept peers and read their handshakes */
     public void run() {
+        ArrayList<Pending> admitted = new ArrayList<>();
         while (!isStopped) {
-            Socket peerSocket;
             try {
-                peerSocket = welcomeSocket.accept();
-            } catch (Exception ex) {
+                selector.select(TICK_MS);
+            } catch (IOException ex) {
+                ex.printStackTrace();
                 continue;
             }
-            if (peerSocket != null) {
-                synchronized (welcomeQ) {
-                    welcomeQ.offer(peerSocket);
-                    welcomeQ.notifyAll();
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.isAcceptable()) {
+                    acceptAll();
+                } else if (key.isReadable()) {
+                    Pending pending = (Pending) key.attachment();
+                    if (readFrom(pending)) {
+                        admitted.add(pending);
+                    }
                 }
             }
+            deadlines.advance(System.currentTimeMillis(), pending -> {
+                Log.debug("handshake from " + pending.addr + " timed out");
+                refuse(pending);
+            });
+            if (!admitted.isEmpty()) {
+                admit(admitted);
+                admitted.clear();
+            }
+            pendingGauge = numPending;
+        }
+    }
+
+    /* acceptAll:  accept every waiting connection, or close it at once */
+    /* if it is over a limit */
+    private void acceptAll() {
+        while (true) {
+            SocketChannel channel;
+            try {
+                channel = welcomeChannel.accept();
+            } catch (IOException ex) {
+                Log.error("error: accept failed: " + ex.getMessage());
+                return;
+            }
+            if (channel == null) {
+                return;
+            }
+            InetAddress addr = channel.socket().getInetAddress();
+            if (numPending >= MAX_PENDING || !hasRoom.getAsBoolean() || !acquire(addr)) {
+                Log.debug("refusing connection from " + addr);
+                refused.inc();
+                close(channel);
+                continue;
+            }
+            Pending pending = new Pending(channel, addr);
+            try {
+                channel.configureBlocking(false);
+                pending.key = channel.register(selector, SelectionKey.OP_READ, pending);
+            } catch (IOException ex) {
+                release(addr);
+                close(channel);
+                continue;
+            }
+            ++numPending;
+            pending.timer = deadlines.newTimer(pending);
+            deadlines.schedule(pending.timer,
+                    System.currentTimeMillis() + HANDSHAKE_TIMEOUT_MS);
+        }
+    }
+
+    /* acquire:  count a connection from addr, if it is under its limit */
+    private boolean acquire(InetAddress addr) {
+        synchronized (perIP) {
+            int n = perIP.getOrDefault(addr, 0);
+            if (n >= MAX_PER_IP) {
+                return false;
+            }
+            perIP.put(addr, n + 1);
+            return true;
+        }
+    }
+
+    /* readFrom:  read what has arrived of a handshake; never past its */
+    /* end, so message bytes behind it are left for the engine */
+    /* return true once the whole handshake is in and names a torrent */
+    private boolean readFrom(Pending pending) {
+        try {
+            if (pending.channel.read(pending.handshake) == -1) {
+                throw new IOException("closed before handshake");
+            }
+        } catch (IOException ex) {
+            Log.debug("lost connection from " + pending.addr + ": " + ex.getMessage());
+            refuse(pending);
+            return false;
+        }
+        if (pending.handshake.hasRemaining()) {
+            return false;
+        }
+        pending.torrent = router.apply(pending.handshake.array());
+        if (pending.torrent == null) {
+            Log.error("error: peer at " + pending.addr + " asked for an unknown torrent");
+            refuse(pending);
+            return false;
+        }
+        deadlines.cancel(pending.timer);
+        pending.key.cancel();
+        --numPending;
+        return true;
+    }
+
+    /* admit:  put admitted connections back in blocking mode, which */
+    /* needs their keys deregistered first, and queue them */
+    private void admit(ArrayList<Pending> admitted) {
+        try {
+            selector.selectNow();    // deregisters the cancelled keys
+        } catch (IOException ignored) {
+        }
+        int numAdmitted = 0;
+        for (Pending pending : admitted) {
+            try {
+                pending.channel.configureBlocking(true);
+            } catch (IOException ex) {
+                refused.inc();
+                release(pending.addr);
+                close(pending.channel);
+                continue;
+            }
+            BitPeer peer = new BitPeer(pending.channel.socket());
+            pending.torrent.setCounters(peer);
+            synchronized (welcomeQ) {
+                welcomeQ.offer(new Admission(pending.torrent, peer));
+                welcomeQ.notifyAll();
+            }
+            ++numAdmitted;
+        }
+        if (numAdmitted > 0) {
+            workSignal.signal();
+        }
+    }
+
+    /* refuse:  close a connection before admitting it */
+    private void refuse(Pending pending) {
+        deadlines.cancel(pending.timer);
+        pending.key.cancel();
+        --numPending;
+        refused.inc();
+        release(pending.addr);
+        close(pending.channel);
+    }
+
+    private static void close(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
         }
     }
 }
@@ -1,2 +1,4 @@
 module beaver.bittorrent {
+    requires java.management;
+    requires jdk.httpserver;
 }
\ No newline at end of file
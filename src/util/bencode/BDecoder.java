@@ -4,52 +4,341 @@
 /* Reference: adapted from @frazboyz implementation on BitBucket */
 /* https://bitbucket.org/frazboyz/bencoder */
 
-/* String of encoded data passed into read function */
-/* read function parses all tokens, returns BObject[] */
+/* decodes bencoded bytes in a single pass. over a ByteBuffer nothing is */
+/* copied: every BString is a slice of the source, and every BDict keeps */
+/* the slice of its own raw encoding, e.g., so the info-hash is taken */
+/* over the exact bytes of the .torrent's info dictionary. the streaming */
+/* variant reads from an InputStream for torrents too big to hold twice; */
+/* its strings are copies, and the raw bytes of one top-level value (e.g., */
+/* "info") can be passed to a sink such as a digest as they are read */
 
 package util.bencode;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicInteger;
 
 public class BDecoder {
-    /* read:  parses an encoded string into Bobjects */
-    public static BObject[] read(final String str) {
-        AtomicInteger pos = new AtomicInteger(0);
+    private static final int MAX_DEPTH = 64;         // nested lists and dicts
+    private static final int STREAM_BUFFER = 64 * 1024;
+
+    private final Source src;
+    private int depth = 0;
+
+    /* Source:  the bytes being decoded, read front to back */
+    private interface Source {
+        /* peek:  next byte without consuming it, or -1 at the end */
+        int peek();
+
+        /* get:  consume the next byte; error at the end */
+        int get();
+
+        /* take:  consume the next n bytes as a read-only buffer */
+        ByteBuffer take(int n);
+
+        /* mark:  offset of the next byte, for raw spans */
+        int mark();
+
+        /* span:  raw bytes from an earlier mark() to here, or null */
+        ByteBuffer span(int from);
+    }
+
+    private BDecoder(Source src) {
+        this.src = src;
+    }
+
+    /* read:  decode every top-level value in data */
+    public static BObject[] read(final byte[] data) {
+        return read(ByteBuffer.wrap(data));
+    }
+
+    /* read:  decode every top-level value from data's position to limit */
+    /* the result's strings and raw spans share data's bytes */
+    public static BObject[] read(final ByteBuffer data) {
+        BDecoder decoder = new BDecoder(new BufferSource(data));
         List<BObject> tokens = new ArrayList<>();
+        while (decoder.skipSpace()) {
+            tokens.add(decoder.next());
+        }
+        return tokens.toArray(new BObject[0]);
+    }
 
-        while (pos.get() < str.length()) {
-            BObject obj = read(str, pos);
-            if (obj == null) {
-                break;
+    /* read:  decode a string holding one byte per char (ISO-8859-1) */
+    public static BObject[] read(final String str) {
+        return read(str.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    /* read:  decode the first value of a stream, e.g., a .torrent file */
+    /* if rawKey is not null, the raw bytes of the top-level dictionary's */
+    /* value under rawKey are written to rawSink as they are read */
+    public static BObject read(final InputStream in, String rawKey,
+                               OutputStream rawSink) throws IOException {
+        StreamSource source = new StreamSource(in);
+        BDecoder decoder = new BDecoder(source);
+        try {
+            if (!decoder.skipSpace()) {
+                throw new IOException("bencode: empty input");
             }
-            tokens.add(obj);
+            source.rawKey = rawKey;
+            source.rawSink = rawSink;
+            return decoder.next();
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
         }
-        return tokens.toArray(new BObject[0]);
     }
 
-    /* read:  parse the next token of Bencoded str */
-    /* 0-9 begins BString, i begins BNumber, l begins BList, d begins BDict */
-    public static BObject read(final String str, final AtomicInteger pos) {
-        char c;
-        if (pos.get() < str.length()) {
-            c = str.charAt(pos.get());
-        } else {
-            System.err.println("tried to read() past end of string");
-            return null;
+    /* skipSpace:  skip whitespace between top-level values */
+    /* return false at the end of the input */
+    private boolean skipSpace() {
+        int c;
+        while ((c = src.peek()) == ' ' || c == '\n' || c == '\r' || c == '\t') {
+            src.get();
         }
+        return c != -1;
+    }
 
+    /* next:  decode the next value */
+    /* 0-9 begins BString, i begins BNumber, l begins BList, d begins BDict */
+    private BObject next() {
+        int c = src.peek();
         if (c >= '0' && c <= '9') {
-            return BString.read(str, pos);
+            return new BString(readBytes());
         } else if (c == 'i') {
-            return BNumber.read(str, pos);
+            src.get();
+            return new BNumber(readLong('e'));
         } else if (c == 'l') {
-            return BList.read(str, pos);
+            return readList();
         } else if (c == 'd') {
-            return BDict.read(str, pos);
+            return readDict();
+        } else if (c == -1) {
+            throw new RuntimeException("bencode: unexpected end of input");
         } else {
-            throw new RuntimeException("\ngetToken: unrecognized type: " + c);
+            throw new RuntimeException("bencode: unrecognized type: " + (char) c);
+        }
+    }
+
+    private BList readList() {
+        enter();
+        src.get();    // 'l'
+        BList list = new BList();
+        while (src.peek() != 'e') {
+            list.add(next());
+        }
+        src.get();
+        --depth;
+        return list;
+    }
+
+    private BDict readDict() {
+        enter();
+        int start = src.mark();
+        src.get();    // 'd'
+        BDict dict = new BDict();
+        while (src.peek() != 'e') {
+            ByteBuffer keyBytes = readBytes();
+            String key = StandardCharsets.UTF_8.decode(keyBytes).toString();
+            dict.put(key, nextValue(key));
+        }
+        src.get();
+        dict.setRaw(src.span(start));
+        --depth;
+        return dict;
+    }
+
+    /* nextValue:  decode a dictionary value, passing it to the raw sink */
+    /* if it is the one asked for */
+    private BObject nextValue(String key) {
+        if (depth == 1 && src instanceof StreamSource stream
+                && key.equals(stream.rawKey)) {
+            stream.isTapped = true;
+            try {
+                return next();
+            } finally {
+                stream.isTapped = false;
+            }
+        }
+        return next();
+    }
+
+    private void enter() {
+        if (++depth > MAX_DEPTH) {
+            throw new RuntimeException("bencode: nested deeper than " + MAX_DEPTH);
+        }
+    }
+
+    /* readBytes:  <length>:<bytes> */
+    private ByteBuffer readBytes() {
+        long len = readLong(':');
+        if (len < 0 || len > Integer.MAX_VALUE) {
+            throw new RuntimeException("bencode: bad string length " + len);
+        }
+        return src.take((int) len);
+    }
+
+    /* readLong:  a decimal integer ending at end, which is consumed */
+    private long readLong(int end) {
+        boolean isNegative = false;
+        if (src.peek() == '-') {
+            src.get();
+            isNegative = true;
+        }
+        long value = 0;    // kept negative, which reaches Long.MIN_VALUE
+        int numDigits = 0;
+        int c;
+        try {
+            while ((c = src.get()) != end) {
+                if (c < '0' || c > '9') {
+                    throw new RuntimeException("bencode: bad integer");
+                }
+                value = Math.subtractExact(Math.multiplyExact(value, 10), c - '0');
+                ++numDigits;
+            }
+            if (numDigits == 0) {
+                throw new RuntimeException("bencode: empty integer");
+            }
+            return isNegative ? value : Math.negateExact(value);
+        } catch (ArithmeticException ex) {
+            throw new RuntimeException("bencode: integer out of range");
+        }
+    }
+
+    /* BufferSource:  bytes already in memory; strings and spans are slices */
+    private static class BufferSource implements Source {
+        private final ByteBuffer buf;
+        private int pos;
+        private final int limit;
+
+        private BufferSource(ByteBuffer data) {
+            this.buf = data.asReadOnlyBuffer();
+            this.pos = data.position();
+            this.limit = data.limit();
+        }
+
+        @Override
+        public int peek() {
+            return (pos < limit) ? (buf.get(pos) & 0xFF) : -1;
+        }
+
+        @Override
+        public int get() {
+            if (pos >= limit) {
+                throw new RuntimeException("bencode: unexpected end of input");
+            }
+            return buf.get(pos++) & 0xFF;
+        }
+
+        @Override
+        public ByteBuffer take(int n) {
+            if (n > limit - pos) {
+                throw new RuntimeException("bencode: string past end of input");
+            }
+            ByteBuffer slice = buf.slice(pos, n);
+            pos += n;
+            return slice;
+        }
+
+        @Override
+        public int mark() {
+            return pos;
+        }
+
+        @Override
+        public ByteBuffer span(int from) {
+            return buf.slice(from, pos - from);
+        }
+    }
+
+    /* StreamSource:  bytes read from a stream through a fixed buffer */
+    /* strings are copied out; raw spans are not kept, but the bytes of */
+    /* the tapped value go to rawSink */
+    private static class StreamSource implements Source {
+        private final InputStream in;
+        private final byte[] buf = new byte[STREAM_BUFFER];
+        private int pos = 0;
+        private int limit = 0;
+        private String rawKey = null;
+        private OutputStream rawSink = null;
+        private boolean isTapped = false;    // inside the value for rawSink
+
+        private StreamSource(InputStream in) {
+            this.in = in;
+        }
+
+        /* fill:  refill an empty buffer; return false at the end */
+        private boolean fill() {
+            if (pos < limit) {
+                return true;
+            }
+            try {
+                int n = in.read(buf);
+                pos = 0;
+                limit = Math.max(n, 0);
+                return n > 0;
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+
+        private void tap(byte[] b, int off, int len) {
+            if (isTapped) {
+                try {
+                    rawSink.write(b, off, len);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            }
+        }
+
+        @Override
+        public int peek() {
+            return fill() ? (buf[pos] & 0xFF) : -1;
+        }
+
+        @Override
+        public int get() {
+            if (!fill()) {
+                throw new RuntimeException("bencode: unexpected end of input");
+            }
+            tap(buf, pos, 1);
+            return buf[pos++] & 0xFF;
+        }
+
+        /* take:  the array grows as bytes arrive, so a length the input */
+        /* claims but does not hold cannot size an allocation */
+        @Override
+        public ByteBuffer take(int n) {
+            byte[] bytes = new byte[Math.min(n, STREAM_BUFFER)];
+            for (int done = 0; done < n; ) {
+                if (!fill()) {
+                    throw new RuntimeException("bencode: string past end of input");
+                }
+                int len = Math.min(n - done, limit - pos);
+                if (done + len > bytes.length) {
+                    bytes = Arrays.copyOf(bytes,
+                            (int) Math.min(n, Math.max(2L * bytes.length, done + len)));
+                }
+                System.arraycopy(buf, pos, bytes, done, len);
+                tap(buf, pos, len);
+                pos += len;
+                done += len;
+            }
+            return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+        }
+
+        @Override
+        public int mark() {
+            return -1;
+        }
+
+        @Override
+        public ByteBuffer span(int from) {
+            return null;
         }
     }
 }
@@ -6,43 +6,24 @@
 
 package util.bencode;
 
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicInteger;
 
 
 /* BDict:  BObject for Bencode dictionary */
 public class BDict extends HashMap<String, BObject> implements BObject {
+    private transient ByteBuffer raw = null;    // bytes this was decoded from, if known
 
-    /* encode:  turn BDict into string representation */
-    @Override
-    public String encode() {
-        final StringBuilder buf = new StringBuilder();
-        buf.append('d');
-
-        for (final Map.Entry<String, BObject> elt : entrySet()) {
-            buf.append(elt.getKey().length()).append(":").append(elt.getKey()).append(elt.getValue().encode());
-        }
-        buf.append('e');
-
-        return buf.toString();
+    /* getRaw:  the exact bytes this dictionary was decoded from, without */
+    /* copying, e.g., to take the info-hash; null if built or streamed. */
+    /* not updated if the dictionary is changed after decoding */
+    public ByteBuffer getRaw() {
+        return (raw == null) ? null : raw.duplicate();
     }
 
-    /* read:  decodes a BDict from a string */
-    public static BDict read(final String str, final AtomicInteger pos) {
-        final BDict dict = new BDict();
-        if (str.charAt(pos.get()) == 'd') {
-            pos.getAndIncrement();
-        }
-
-        while (str.charAt(pos.get()) != 'e') {
-            final String key = BString.read(str, pos).getString();
-            final BObject value = BDecoder.read(str, pos);
-            dict.put(key, value);
-        }
-        pos.getAndIncrement();
-
-        return dict;
+    void setRaw(final ByteBuffer raw) {
+        this.raw = raw;
     }
 
     /* print:  produce a human-readable string */
@@ -0,0 +1,261 @@
+/* BEncoder.java:  writes BObjects as canonical bencoded bytes */
+/* Christopher Chute */
+
+/* the output is canonical per BEP 3: dictionary keys are sorted by their */
+/* raw (UTF-8) bytes, so equal BObjects always encode, and hash, the same */
+/* no matter the order of the BDict's HashMap. each value is written */
+/* straight into the destination; nothing is built up as a String. */
+/* getLength gives the exact encoded size, e.g., to size a buffer first */
+
+package util.bencode;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+public class BEncoder {
+    private static final int STREAM_BUFFER = 8 * 1024;
+
+    /* Sink:  where encoded bytes go */
+    private interface Sink {
+        void put(byte b);
+
+        void put(ByteBuffer src);
+
+        void put(byte[] src);
+    }
+
+    /* getLength:  number of bytes obj encodes to */
+    public static long getLength(final BObject obj) {
+        return switch (obj.getType()) {
+            case BSTRING -> getStringLength(((BString) obj).length());
+            case BNUMBER -> 2 + getDigits(((BNumber) obj).getValue());
+            case BLIST -> {
+                long len = 2;
+                for (BObject elt : (BList) obj) {
+                    len += getLength(elt);
+                }
+                yield len;
+            }
+            case BDICT -> {
+                long len = 2;
+                for (Map.Entry<String, BObject> elt : ((BDict) obj).entrySet()) {
+                    len += getStringLength(getUtf8Length(elt.getKey()))
+                            + getLength(elt.getValue());
+                }
+                yield len;
+            }
+        };
+    }
+
+    /* toBytes:  obj encoded into an array of exactly its length */
+    public static byte[] toBytes(final BObject obj) {
+        long len = getLength(obj);
+        if (len > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("bencode: too large for an array");
+        }
+        byte[] out = new byte[(int) len];
+        encode(obj, ByteBuffer.wrap(out));
+        return out;
+    }
+
+    /* encode:  write obj at dst's position, advancing it */
+    /* throws BufferOverflowException if fewer than getLength(obj) remain */
+    public static void encode(final BObject obj, final ByteBuffer dst) {
+        write(obj, new Sink() {
+            @Override
+            public void put(byte b) {
+                dst.put(b);
+            }
+
+            @Override
+            public void put(ByteBuffer src) {
+                dst.put(src);
+            }
+
+            @Override
+            public void put(byte[] src) {
+                dst.put(src);
+            }
+        });
+    }
+
+    /* encode:  write obj to out through a small buffer, flushed at the end */
+    public static void encode(final BObject obj, final OutputStream out) throws IOException {
+        StreamSink sink = new StreamSink(out);
+        try {
+            write(obj, sink);
+            sink.flush();
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+    }
+
+    private static void write(final BObject obj, final Sink sink) {
+        switch (obj.getType()) {
+            case BSTRING -> {
+                BString str = (BString) obj;
+                putLong(sink, str.length());
+                sink.put((byte) ':');
+                sink.put(str.getBuffer());
+            }
+            case BNUMBER -> {
+                sink.put((byte) 'i');
+                putLong(sink, ((BNumber) obj).getValue());
+                sink.put((byte) 'e');
+            }
+            case BLIST -> {
+                sink.put((byte) 'l');
+                for (BObject elt : (BList) obj) {
+                    write(elt, sink);
+                }
+                sink.put((byte) 'e');
+            }
+            case BDICT -> writeDict((BDict) obj, sink);
+        }
+    }
+
+    /* writeDict:  entries in order of their keys' bytes */
+    private static void writeDict(final BDict dict, final Sink sink) {
+        byte[][] keys = new byte[dict.size()][];
+        BObject[] values = new BObject[dict.size()];
+        Integer[] order = new Integer[dict.size()];
+        int n = 0;
+        for (Map.Entry<String, BObject> elt : dict.entrySet()) {
+            keys[n] = elt.getKey().getBytes(StandardCharsets.UTF_8);
+            values[n] = elt.getValue();
+            order[n] = n;
+            ++n;
+        }
+        Arrays.sort(order, (a, b) -> Arrays.compareUnsigned(keys[a], keys[b]));
+
+        sink.put((byte) 'd');
+        for (int i : order) {
+            putLong(sink, keys[i].length);
+            sink.put((byte) ':');
+            sink.put(keys[i]);
+            write(values[i], sink);
+        }
+        sink.put((byte) 'e');
+    }
+
+    /* putLong:  n in decimal ASCII, without allocating */
+    private static void putLong(final Sink sink, long n) {
+        if (n < 0) {
+            sink.put((byte) '-');
+            if (n == Long.MIN_VALUE) {    // has no positive counterpart
+                sink.put("9223372036854775808".getBytes(StandardCharsets.US_ASCII));
+                return;
+            }
+            n = -n;
+        }
+        long div = 1;
+        while (div <= n / 10) {
+            div *= 10;
+        }
+        for (; div > 0; div /= 10) {
+            sink.put((byte) ('0' + (n / div) % 10));
+        }
+    }
+
+    /* getDigits:  length of n in decimal, with its sign */
+    private static int getDigits(long n) {
+        if (n == Long.MIN_VALUE) {
+            return 20;
+        }
+        int len = 1;
+        if (n < 0) {
+            ++len;
+            n = -n;
+        }
+        while (n >= 10) {
+            ++len;
+            n /= 10;
+        }
+        return len;
+    }
+
+    private static long getStringLength(int numBytes) {
+        return getDigits(numBytes) + 1 + numBytes;
+    }
+
+    /* getUtf8Length:  bytes in s as UTF-8, without encoding it */
+    private static int getUtf8Length(final String s) {
+        int len = 0;
+        for (int i = 0; i < s.length(); ++i) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                len += 1;
+            } else if (c < 0x800) {
+                len += 2;
+            } else if (!Character.isSurrogate(c)) {
+                len += 3;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                len += 4;
+                ++i;
+            } else {
+                len += 1;    // a lone surrogate encodes as '?'
+            }
+        }
+        return len;
+    }
+
+    /* StreamSink:  collects small writes into one buffer; large strings */
+    /* are copied through it a buffer at a time */
+    private static class StreamSink implements Sink {
+        private final OutputStream out;
+        private final byte[] buf = new byte[STREAM_BUFFER];
+        private int pos = 0;
+
+        private StreamSink(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void put(byte b) {
+            if (pos == buf.length) {
+                flush();
+            }
+            buf[pos++] = b;
+        }
+
+        @Override
+        public void put(ByteBuffer src) {
+            if (src.remaining() <= buf.length - pos) {
+                int len = src.remaining();
+                src.get(buf, pos, len);
+                pos += len;
+                return;
+            }
+            flush();
+            try {
+                while (src.hasRemaining()) {
+                    int len = Math.min(buf.length, src.remaining());
+                    src.get(buf, 0, len);
+                    out.write(buf, 0, len);
+                }
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+
+        @Override
+        public void put(byte[] src) {
+            put(ByteBuffer.wrap(src));
+        }
+
+        private void flush() {
+            try {
+                out.write(buf, 0, pos);
+                pos = 0;
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+    }
+}
@@ -6,37 +6,15 @@
 
 package util.bencode;
 
-import java.util.concurrent.atomic.AtomicInteger;
-
 public class BNumber implements BObject {
-    private final int number;
+    private final long number;    // long: file lengths may pass 2 GiB
 
-    public BNumber(final int n) {
+    public BNumber(final long n) {
         this.number = n;
     }
 
-    @Override
-    public String encode() {
-        return "i" + number + "e";
-    }
-
-    /* read:  parse a BNumber object from a bencoded string */
-    public static BNumber read(final String str, final AtomicInteger pos) {
-        if (str.charAt(pos.get()) == 'i') {
-            pos.getAndIncrement();
-        }
-
-        int value;
-        final int endPos = str.indexOf('e', pos.get());
-        try {
-            value = Integer.parseInt(str.substring(pos.get(), endPos));
-        } catch (NumberFormatException ex) {
-            System.err.println("error: misformatted BNumber object");
-            return null;
-        }
-        pos.set(endPos + 1);
-
-        return new BNumber(value);
+    public long getValue() {
+        return number;
     }
 
     /* print:  produce a human-readable string */
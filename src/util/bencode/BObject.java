@@ -6,6 +6,8 @@
 
 package util.bencode;
 
+import java.nio.charset.StandardCharsets;
+
 public interface BObject {
     enum BObjectType {
         BDICT,
@@ -13,8 +15,11 @@ public interface BObject {
         BNUMBER,
         BLIST
     }
-    /* encode:  convert BObject to Bencoded string representation */
-    String encode();
+    /* encode:  canonical bencoding, one char per byte (ISO-8859-1) */
+    /* BEncoder writes the bytes straight to a buffer or stream instead */
+    default String encode() {
+        return new String(BEncoder.toBytes(this), StandardCharsets.ISO_8859_1);
+    }
 
     /* print:  produce a human-readable string */
     String print();
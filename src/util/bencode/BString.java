@@ -4,47 +4,61 @@
 /* Reference: adapted from @frazboyz implementation on BitBucket */
 /* https://bitbucket.org/frazboyz/bencoder */
 
+/* a bencoded string is bytes, not text: it is kept as a read-only buffer */
+/* (a slice of the decoder's input when decoded from memory), and decoded */
+/* as UTF-8 only when asked for, e.g., not at all for the piece hashes */
+
 package util.bencode;
 
-import java.util.concurrent.atomic.AtomicInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 
 /* BString:  BObject for a Bencoded string */
 public class BString implements BObject {
-    public String str;
+    private ByteBuffer bytes;
+    private String str = null;    // bytes as UTF-8, once asked for
 
     public BString(final String str) {
+        this(ByteBuffer.wrap(str.getBytes(StandardCharsets.UTF_8)));
         this.str = str;
     }
 
+    public BString(final ByteBuffer bytes) {
+        this.bytes = bytes.asReadOnlyBuffer();
+    }
+
     public String getString() {
+        if (str == null) {
+            str = StandardCharsets.UTF_8.decode(bytes.duplicate()).toString();
+        }
         return str;
     }
 
     public void setString(final String str) {
+        this.bytes = ByteBuffer.wrap(str.getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
         this.str = str;
     }
 
-    @Override
-    public String encode() {
-        return str.length() + ":" + str;
+    /* getBuffer:  the raw bytes, without copying */
+    public ByteBuffer getBuffer() {
+        return bytes.duplicate();
     }
 
-    /* read:  parse a BString object from a Bencoded string */
-    public static BString read(final String str, AtomicInteger pos) {
-        final int delimPos = str.indexOf(':', pos.get());
-        final int len = Integer.parseInt(str.substring(pos.get(), delimPos));
-        pos.set(delimPos + 1);
-
-        final String token = str.substring(pos.get(), pos.get() + len);
-        pos.set(pos.get() + len);
+    /* getBytes:  a copy of the raw bytes */
+    public byte[] getBytes() {
+        byte[] copy = new byte[bytes.remaining()];
+        bytes.duplicate().get(copy);
+        return copy;
+    }
 
-        return new BString(token);
+    public int length() {
+        return bytes.remaining();
     }
 
     /* print:  produce a human-readable string */
     @Override
     public String print() {
-        return str;
+        return getString();
     }
 
     @Override
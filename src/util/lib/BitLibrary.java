@@ -3,20 +3,38 @@
 
 package util.lib;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
 
 public class BitLibrary {
+    private static final Random random = new Random();
+    private static final DateTimeFormatter TIME_FORMAT
+            = DateTimeFormatter.ofPattern("hh:mm:ss");
+    private static volatile TimeString timeString = null;    // last formatted
+
+    /* TimeString:  a second and its formatted timestamp */
+    private static class TimeString {
+        private final long second;
+        private final String text;
+
+        private TimeString(long second, String text) {
+            this.second = second;
+            this.text = text;
+        }
+    }
+
     /* getRandomSet:  returns an array of n (or hi - lo, whichever is smaller) */
     /* random integers from the range [lo, hi) */
     public static Set<Integer> getRandomSet(int n, int lo, int hi) {
-        Random random = new Random(System.currentTimeMillis());
         HashSet<Integer> s = new HashSet<>();
         while (s.size() < n && s.size() < hi - lo) {
-            s.add(random.nextInt(hi) + lo);
+            s.add(random.nextInt(hi - lo) + lo);
         }
         return s;
     }
@@ -59,17 +77,6 @@ public class BitLibrary {
         return bitfield;
     }
 
-    /* isAllTrue:  returns true if boolean array is all true values */
-    /* e.g., true if array is a bitfield and the download is complete */
-    public static boolean isAllTrue(boolean[] array) {
-        for (boolean val : array) {
-            if (!val) {
-                return false;
-            }
-        }
-        return true;
-    }
-
     /* hasStr:  returns true iff array of strings contains an instance of str */
     public static boolean hasStr(String[] array, String str) {
         for (String s : array) {
@@ -81,27 +88,30 @@ public class BitLibrary {
     }
 
     /* getBitString: return a reader-friendly string of a bitfield */
-    public static String getBitString(boolean[] bitfield) {
+    public static String getBitString(Bitfield bitfield) {
         StringBuilder sb = new StringBuilder();
         sb.append("{");
-        for (int i = 0; i < bitfield.length - 1; ++i) {
-            if (bitfield[i]) {
-                sb.append("1, ");
-            } else {
-                sb.append("0, ");
+        for (int i = 0; i < bitfield.size(); ++i) {
+            if (i > 0) {
+                sb.append(", ");
             }
+            sb.append(bitfield.get(i) ? '1' : '0');
         }
-        if (bitfield[bitfield.length - 1]) {
-            sb.append("1}");
-        } else {
-            sb.append("0}");
-        }
+        sb.append("}");
         return sb.toString();
     }
 
     /* getTimeString: return a reader-friendly timestamp to print to the log */
+    /* formatted at most once a second; other calls return the cached one */
     public static String getTimeString() {
-        return new SimpleDateFormat("hh:mm:ss").format(new Date());
+        long second = System.currentTimeMillis() / 1000;
+        TimeString cached = timeString;
+        if (cached == null || cached.second != second) {
+            cached = new TimeString(second, TIME_FORMAT.format(
+                    Instant.ofEpochSecond(second).atZone(ZoneId.systemDefault())));
+            timeString = cached;
+        }
+        return cached.text;
     }
 
     /* getSHA1:  returns the 20-byte SHA1 hash of the stringToHash */
@@ -121,4 +131,16 @@ public class BitLibrary {
         return md.digest();
     }
 
+    /* getSHA1:  returns the 20-byte SHA1 hash of the remaining bytes */
+    public static byte[] getSHA1(final ByteBuffer bytesToHash) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            md.update(bytesToHash.duplicate());
+            return md.digest();
+        } catch (NoSuchAlgorithmException ex) {
+            ex.printStackTrace();
+            return null;
+        }
+    }
+
 }
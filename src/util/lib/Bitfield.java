@@ -0,0 +1,184 @@
+/* Bitfield.java:  fixed-size set of piece indices packed into longs */
+/* Christopher Chute */
+
+/* bit i lives in word i / 64 counting from the word's high bit, so each */
+/* word is exactly 8 bytes of the BitTorrent wire format (big-endian, */
+/* piece 0 in the high bit of byte 0) and converting is a copy of longs. */
+/* the number of set bits is kept as bits change, so completeness is O(1) */
+
+package util.lib;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class Bitfield {
+    private long[] words;       // (size + 63) / 64 of them
+    private int size;           // number of valid bits
+    private int cardinality;    // number of set bits
+
+    public Bitfield(int size) {
+        this.words = new long[(size + 63) >>> 6];
+        this.size = size;
+        this.cardinality = 0;
+    }
+
+    private Bitfield(Bitfield other) {
+        this.words = other.words.clone();
+        this.size = other.size;
+        this.cardinality = other.cardinality;
+    }
+
+    /* fromWire:  read size bits in wire format from src's position */
+    /* consumes ceil(size / 8) bytes; spare bits at the end are ignored */
+    public static Bitfield fromWire(ByteBuffer src, int size) {
+        Bitfield bf = new Bitfield(size);
+        int numBytes = getWireLength(size);
+        int i = 0;
+        for (; (i + 1) * 8 <= numBytes; ++i) {
+            bf.words[i] = src.getLong();
+        }
+        for (int shift = 56; i * 8 + (56 - shift) / 8 < numBytes; shift -= 8) {
+            bf.words[i] |= (src.get() & 0xFFL) << shift;
+        }
+        bf.clearSpareBits();
+        bf.recount();
+        return bf;
+    }
+
+    /* getWireLength:  bytes in the wire format of size bits */
+    public static int getWireLength(int size) {
+        return (size + 7) >>> 3;
+    }
+
+    /* writeTo:  put the bits in wire format at dst's position */
+    public void writeTo(ByteBuffer dst) {
+        int numBytes = getWireLength(size);
+        int i = 0;
+        for (; (i + 1) * 8 <= numBytes; ++i) {
+            dst.putLong(words[i]);
+        }
+        for (int shift = 56; i * 8 + (56 - shift) / 8 < numBytes; shift -= 8) {
+            dst.put((byte) (words[i] >>> shift));
+        }
+    }
+
+    /* toWire:  the bits in wire format, e.g., for a resume file */
+    public byte[] toWire() {
+        ByteBuffer buf = ByteBuffer.allocate(getWireLength(size));
+        writeTo(buf);
+        return buf.array();
+    }
+
+    public Bitfield copy() {
+        return new Bitfield(this);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int cardinality() {
+        return cardinality;
+    }
+
+    /* isComplete:  true if every bit is set, e.g., a finished download */
+    public boolean isComplete() {
+        return cardinality == size;
+    }
+
+    public boolean isEmpty() {
+        return cardinality == 0;
+    }
+
+    public boolean get(int i) {
+        return (words[i >>> 6] & bit(i)) != 0;
+    }
+
+    /* set:  set bit i; return false if it was already set */
+    public boolean set(int i) {
+        long w = words[i >>> 6];
+        if ((w & bit(i)) != 0) {
+            return false;
+        }
+        words[i >>> 6] = w | bit(i);
+        ++cardinality;
+        return true;
+    }
+
+    /* clear:  clear bit i; return false if it was already clear */
+    public boolean clear(int i) {
+        long w = words[i >>> 6];
+        if ((w & bit(i)) == 0) {
+            return false;
+        }
+        words[i >>> 6] = w & ~bit(i);
+        --cardinality;
+        return true;
+    }
+
+    public void setAll() {
+        Arrays.fill(words, -1L);
+        clearSpareBits();
+        cardinality = size;
+    }
+
+    /* truncate:  drop the bits from newSize on, e.g., the pad bits of a */
+    /* received BITFIELD once the number of pieces is known */
+    public void truncate(int newSize) {
+        if (newSize > size) {
+            throw new IllegalArgumentException("cannot grow a Bitfield");
+        }
+        size = newSize;
+        words = Arrays.copyOf(words, (newSize + 63) >>> 6);
+        clearSpareBits();
+        recount();
+    }
+
+    /* nextSetBit:  first set bit at or after from, or -1 */
+    public int nextSetBit(int from) {
+        return nextSetBitAndNot(null, from);
+    }
+
+    /* nextSetBitAndNot:  first bit at or after from that is set here and */
+    /* clear in other (e.g., a piece they have that I lack), or -1 */
+    /* other may be null, and must otherwise be the same size */
+    public int nextSetBitAndNot(Bitfield other, int from) {
+        if (from >= size) {
+            return -1;
+        }
+        int i = from >>> 6;
+        long w = word(other, i) & (-1L >>> (from & 63));
+        while (true) {
+            if (w != 0) {
+                int index = (i << 6) + Long.numberOfLeadingZeros(w);
+                return (index < size) ? index : -1;
+            }
+            if (++i == words.length) {
+                return -1;
+            }
+            w = word(other, i);
+        }
+    }
+
+    private long word(Bitfield other, int i) {
+        return (other == null) ? words[i] : words[i] & ~other.words[i];
+    }
+
+    private static long bit(int i) {
+        return Long.MIN_VALUE >>> (i & 63);
+    }
+
+    private void clearSpareBits() {
+        if ((size & 63) != 0) {
+            words[(size - 1) >>> 6] &= -1L << (64 - (size & 63));
+        }
+    }
+
+    private void recount() {
+        int n = 0;
+        for (long w : words) {
+            n += Long.bitCount(w);
+        }
+        cardinality = n;
+    }
+}
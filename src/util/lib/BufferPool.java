@@ -0,0 +1,109 @@
+/* BufferPool.java:  slab-allocated pool of fixed-size block buffers */
+/* Christopher Chute */
+
+/* each size class carves slabs of buffersPerSlab buffers out of one large */
+/* allocation, up to maxSlabs slabs. a request that fits no class, or */
+/* finds its class exhausted, is a miss and gets a plain unpooled buffer */
+
+package util.lib;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.LongAdder;
+
+public class BufferPool {
+    private final int[] sizes;                     // ascending buffer sizes
+    private final ArrayDeque<PooledBuffer>[] free; // free buffers per class
+    private final int[] numSlabs;                  // slabs per class
+    private final int buffersPerSlab;
+    private final int maxSlabs;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder inUse = new LongAdder();
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(int[] sizes, int buffersPerSlab, int maxSlabs) {
+        this.sizes = sizes.clone();
+        this.buffersPerSlab = buffersPerSlab;
+        this.maxSlabs = maxSlabs;
+        this.numSlabs = new int[sizes.length];
+        this.free = new ArrayDeque[sizes.length];
+        for (int i = 0; i < sizes.length; ++i) {
+            free[i] = new ArrayDeque<>();
+        }
+    }
+
+    /* acquire:  return a buffer with room for len bytes, limit set to len */
+    /* and one reference held by the caller */
+    public PooledBuffer acquire(int len) {
+        int c = 0;
+        while (c < sizes.length && sizes[c] < len) {
+            ++c;
+        }
+        PooledBuffer buf = null;
+        if (c < sizes.length) {
+            synchronized (free[c]) {
+                if (free[c].isEmpty() && numSlabs[c] < maxSlabs) {
+                    addSlab(c);
+                }
+                buf = free[c].poll();
+            }
+        }
+        if (buf == null) {
+            misses.increment();
+            buf = new PooledBuffer(null, -1, ByteBuffer.allocate(len));
+        } else {
+            hits.increment();
+            inUse.increment();
+        }
+        buf.reset(len);
+        return buf;
+    }
+
+    /* recycle:  called by PooledBuffer when its last reference is released */
+    void recycle(PooledBuffer buf) {
+        int c = buf.getSizeClass();
+        inUse.decrement();
+        synchronized (free[c]) {
+            free[c].push(buf);    // most recently used first, still cached
+        }
+    }
+
+    /* addSlab:  carve a new slab into free buffers of class c */
+    /* caller holds the lock on free[c] */
+    private void addSlab(int c) {
+        ByteBuffer slab = ByteBuffer.allocate(sizes[c] * buffersPerSlab);
+        for (int i = 0; i < buffersPerSlab; ++i) {
+            free[c].push(new PooledBuffer(this, c, slab.slice(i * sizes[c], sizes[c])));
+        }
+        ++numSlabs[c];
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getInUse() {
+        return inUse.sum();
+    }
+
+    /* getStats:  reader-friendly summary of pool usage */
+    public String getStats() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("hits=").append(getHits())
+          .append(" misses=").append(getMisses())
+          .append(" inUse=").append(getInUse())
+          .append(" slabs={");
+        for (int i = 0; i < sizes.length; ++i) {
+            synchronized (free[i]) {
+                sb.append(sizes[i] / 1024).append("K:").append(numSlabs[i]);
+            }
+            sb.append(i < sizes.length - 1 ? ", " : "}");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,134 @@
+/* Log.java:  leveled logging written out by a background thread */
+/* Christopher Chute */
+
+/* callers only put a line on a bounded queue and return, so the network */
+/* loop never waits on stdout; a daemon thread writes the lines out in */
+/* batches, INFO lines to stdout and the rest to stderr. if the queue is */
+/* full the line is dropped and counted rather than blocking the caller. */
+/* a disabled level costs one volatile read, and callers building costly */
+/* lines check isEnabled() first */
+
+package util.lib;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+public class Log {
+    private static final int CAPACITY = 16 * 1024;    // lines waiting to be written
+
+    /* Level:  most to least severe; a level enables those before it too */
+    public enum Level {
+        ERROR,
+        INFO,
+        DEBUG
+    }
+
+    /* Line:  a queued line and where it goes */
+    private static class Line {
+        private final Level level;
+        private final String text;
+
+        private Line(Level level, String text) {
+            this.level = level;
+            this.text = text;
+        }
+    }
+
+    private static volatile Level level = Level.INFO;
+    private static final ArrayBlockingQueue<Line> lineQ = new ArrayBlockingQueue<>(CAPACITY);
+    private static final LongAdder dropped = new LongAdder();
+    private static final PrintStream out = System.out;
+    private static final PrintStream err = System.err;
+
+    static {
+        Thread writer = new Thread(Log::runWriter, "Log");
+        writer.setDaemon(true);
+        writer.start();
+        // write out what is still queued when the JVM exits; hooks run
+        // concurrently, so one that logs flushes again when it is done
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "LogFlush"));
+    }
+
+    public static void setLevel(Level newLevel) {
+        level = newLevel;
+    }
+
+    public static Level getLevel() {
+        return level;
+    }
+
+    /* isEnabled:  true if lines of this level are written */
+    public static boolean isEnabled(Level l) {
+        return l.ordinal() <= level.ordinal();
+    }
+
+    public static void error(String text) {
+        log(Level.ERROR, text);
+    }
+
+    public static void info(String text) {
+        log(Level.INFO, text);
+    }
+
+    public static void debug(String text) {
+        log(Level.DEBUG, text);
+    }
+
+    /* log:  queue a line if its level is enabled; never blocks */
+    public static void log(Level l, String text) {
+        if (!isEnabled(l)) {
+            return;
+        }
+        if (!lineQ.offer(new Line(l, text))) {
+            dropped.increment();
+        }
+    }
+
+    /* flush:  write out every queued line on the calling thread */
+    public static void flush() {
+        List<Line> batch = new ArrayList<>();
+        lineQ.drainTo(batch);
+        write(batch);
+    }
+
+    private static void runWriter() {
+        List<Line> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(lineQ.take());
+            } catch (InterruptedException ex) {
+                return;
+            }
+            lineQ.drainTo(batch);
+            write(batch);
+            batch.clear();
+        }
+    }
+
+    /* write:  print a batch with one call per stream */
+    /* synchronized so a flush at exit does not interleave with the writer */
+    private static synchronized void write(List<Line> batch) {
+        StringBuilder outText = new StringBuilder();
+        StringBuilder errText = new StringBuilder();
+        for (Line line : batch) {
+            StringBuilder sb = (line.level == Level.INFO) ? outText : errText;
+            sb.append(line.text).append(System.lineSeparator());
+        }
+        long numDropped = dropped.sumThenReset();
+        if (numDropped > 0) {
+            errText.append("warning: ").append(numDropped)
+                    .append(" log lines dropped").append(System.lineSeparator());
+        }
+        if (outText.length() > 0) {
+            out.print(outText);
+            out.flush();
+        }
+        if (errText.length() > 0) {
+            err.print(errText);
+            err.flush();
+        }
+    }
+}
@@ -0,0 +1,47 @@
+/* PooledBuffer.java:  reference-counted buffer handed out by a BufferPool */
+/* Christopher Chute */
+
+package util.lib;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class PooledBuffer {
+    private final BufferPool pool;        // null if allocated on a miss
+    private final int sizeClass;          // index of pool's size class
+    private final ByteBuffer buffer;
+    private final AtomicInteger refCount = new AtomicInteger(0);
+
+    PooledBuffer(BufferPool pool, int sizeClass, ByteBuffer buffer) {
+        this.pool = pool;
+        this.sizeClass = sizeClass;
+        this.buffer = buffer;
+    }
+
+    /* buffer:  the underlying bytes, limited to the length acquired */
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /* release:  drop a reference, returning the buffer to its pool when */
+    /* the last one is gone */
+    public void release() {
+        int n = refCount.decrementAndGet();
+        if (n == 0 && pool != null) {
+            pool.recycle(this);
+        } else if (n < 0) {
+            throw new IllegalStateException("buffer released too many times");
+        }
+    }
+
+    /* reset:  prepare a recycled buffer for a new owner */
+    void reset(int len) {
+        buffer.clear();
+        buffer.limit(len);
+        refCount.set(1);
+    }
+
+    int getSizeClass() {
+        return sizeClass;
+    }
+}
@@ -0,0 +1,51 @@
+/* RateMeter.java:  bytes per second over a rolling window */
+/* Christopher Chute */
+
+/* bytes are added to a ring of one-second slots; a slot is zeroed as the */
+/* window moves past it, so the rate covers only the last WINDOW seconds */
+/* not thread-safe: the client updates and reads it under clientLock */
+
+package util.lib;
+
+public class RateMeter {
+    private static final int WINDOW = 20;    // seconds in the window
+
+    private final long[] slots = new long[WINDOW];
+    private final long startMs;              // when the meter was made
+    private long second;                     // second of the newest slot
+    private long total = 0;                  // bytes in the window
+
+    public RateMeter(long nowMs) {
+        this.startMs = nowMs;
+        this.second = nowMs / 1000;
+    }
+
+    /* add:  count n bytes moved at time nowMs */
+    public void add(long n, long nowMs) {
+        advance(nowMs / 1000);
+        slots[(int) (second % WINDOW)] += n;
+        total += n;
+    }
+
+    /* getRate:  bytes per second over the window, or since the meter */
+    /* was made if that is shorter */
+    public double getRate(long nowMs) {
+        advance(nowMs / 1000);
+        double seconds = Math.min(WINDOW, (nowMs - startMs) / 1000.0);
+        return total / Math.max(seconds, 1.0);
+    }
+
+    /* advance:  move the window up to second now, zeroing passed slots */
+    private void advance(long now) {
+        if (now <= second) {
+            return;
+        }
+        long steps = Math.min(now - second, WINDOW);
+        for (long s = now - steps + 1; s <= now; ++s) {
+            int i = (int) (s % WINDOW);
+            total -= slots[i];
+            slots[i] = 0;
+        }
+        second = now;
+    }
+}
@@ -0,0 +1,123 @@
+/* TimingWheel.java:  hashed timing wheel of timers */
+/* Christopher Chute */
+
+/* a timer is hashed by its deadline into a ring of slots, one slot per */
+/* tick, and linked into that slot's list. scheduling and cancelling are */
+/* O(1), and advancing the wheel by a tick only looks at the timers in */
+/* one slot. a timer more than one turn of the ring away stays in its */
+/* slot for the extra turns. not thread-safe: the client schedules and */
+/* advances its wheel under clientLock, the welcomer on its own thread */
+
+package util.lib;
+
+import java.util.ArrayList;
+import java.util.function.Consumer;
+
+public class TimingWheel<T> {
+    /* Timer:  one item's place on the wheel */
+    public static final class Timer<T> {
+        private final T item;
+        private long deadline;         // ms
+        private int slot = -1;         // -1 when not scheduled
+        private Timer<T> prev = null;
+        private Timer<T> next = null;
+
+        private Timer(T item) {
+            this.item = item;
+        }
+
+        public T getItem() {
+            return item;
+        }
+
+        public boolean isScheduled() {
+            return slot >= 0;
+        }
+    }
+
+    private final Timer<T>[] slots;    // head of each slot's list
+    private final long tickMs;
+    private long tick;                 // last tick advanced to
+    private int size = 0;              // timers scheduled
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TimingWheel(int numSlots, long tickMs, long nowMs) {
+        this.slots = (Timer<T>[]) new Timer[numSlots];
+        this.tickMs = tickMs;
+        this.tick = nowMs / tickMs;
+    }
+
+    /* newTimer:  a timer for item, not yet scheduled */
+    public Timer<T> newTimer(T item) {
+        return new Timer<>(item);
+    }
+
+    /* schedule:  expire timer at deadlineMs, or on the next tick if that */
+    /* has passed; replaces any earlier schedule */
+    public void schedule(Timer<T> timer, long deadlineMs) {
+        cancel(timer);
+        timer.deadline = deadlineMs;
+        long t = Math.max(deadlineMs / tickMs, tick + 1);
+        int slot = (int) (t % slots.length);
+        timer.slot = slot;
+        timer.next = slots[slot];
+        if (timer.next != null) {
+            timer.next.prev = timer;
+        }
+        slots[slot] = timer;
+        ++size;
+    }
+
+    /* cancel:  unschedule timer, if scheduled */
+    public void cancel(Timer<T> timer) {
+        if (timer.slot < 0) {
+            return;
+        }
+        if (timer.prev != null) {
+            timer.prev.next = timer.next;
+        } else {
+            slots[timer.slot] = timer.next;
+        }
+        if (timer.next != null) {
+            timer.next.prev = timer.prev;
+        }
+        timer.prev = null;
+        timer.next = null;
+        timer.slot = -1;
+        --size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /* advance:  move the wheel up to nowMs, passing the item of every */
+    /* timer that has expired to expire; it may schedule timers again */
+    /* return the number of timers expired */
+    public int advance(long nowMs, Consumer<T> expire) {
+        long target = nowMs / tickMs;
+        if (target <= tick) {
+            return 0;    // still within the last tick
+        }
+        if (target - tick > slots.length) {
+            tick = target - slots.length;    // one turn visits every slot
+        }
+        ArrayList<Timer<T>> expired = new ArrayList<>();
+        while (tick < target) {
+            ++tick;
+            Timer<T> timer = slots[(int) (tick % slots.length)];
+            while (timer != null) {
+                Timer<T> next = timer.next;
+                if (timer.deadline / tickMs <= tick) {
+                    cancel(timer);
+                    expired.add(timer);
+                }
+                timer = next;
+            }
+        }
+        for (Timer<T> timer : expired) {
+            expire.accept(timer.item);
+        }
+        return expired.size();
+    }
+}
@@ -0,0 +1,38 @@
+/* Counter.java:  monotonically increasing count, updated without locks */
+/* Christopher Chute */
+
+/* backed by a LongAdder, so threads adding at once touch separate cells */
+/* and never contend. a counter may roll up into a parent, e.g., a peer's */
+/* bytes into the client's total */
+
+package util.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+public class Counter {
+    private final LongAdder count = new LongAdder();
+    private final Counter parent;    // also counts what this counts, or null
+
+    public Counter() {
+        this(null);
+    }
+
+    public Counter(Counter parent) {
+        this.parent = parent;
+    }
+
+    public void inc() {
+        add(1);
+    }
+
+    public void add(long n) {
+        count.add(n);
+        if (parent != null) {
+            parent.add(n);
+        }
+    }
+
+    public long get() {
+        return count.sum();
+    }
+}
@@ -0,0 +1,55 @@
+/* Histogram.java:  distribution of observed values, e.g., latencies */
+/* Christopher Chute */
+
+/* values are counted in fixed buckets with upper bounds 1, 2, 4, ... */
+/* 2^(NUM_BOUNDS-1), plus one for anything larger. each bucket is a */
+/* LongAdder, so observing takes no lock */
+
+package util.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+public class Histogram {
+    public static final int NUM_BOUNDS = 32;    // last bound is 2^31
+
+    private final LongAdder[] buckets = new LongAdder[NUM_BOUNDS + 1];
+    private final LongAdder sum = new LongAdder();
+
+    public Histogram() {
+        for (int i = 0; i < buckets.length; ++i) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /* observe:  count one value (negative values count as 0) */
+    public void observe(long value) {
+        long v = Math.max(value, 0);
+        // smallest i with v <= 2^i
+        int i = (v <= 1) ? 0 : 64 - Long.numberOfLeadingZeros(v - 1);
+        buckets[Math.min(i, NUM_BOUNDS)].increment();
+        sum.add(v);
+    }
+
+    /* getBound:  upper bound of bucket i, for i < NUM_BOUNDS */
+    public static long getBound(int i) {
+        return 1L << i;
+    }
+
+    /* getBucket:  values counted in bucket i (not cumulative) */
+    /* bucket NUM_BOUNDS holds values above the last bound */
+    public long getBucket(int i) {
+        return buckets[i].sum();
+    }
+
+    public long getCount() {
+        long n = 0;
+        for (LongAdder b : buckets) {
+            n += b.sum();
+        }
+        return n;
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+}
@@ -0,0 +1,235 @@
+/* MetricsRegistry.java:  named metrics, exported as Prometheus text and JMX */
+/* Christopher Chute */
+
+/* each metric has a name, a label string (e.g., peer="10.0.0.1:6881", or */
+/* "" for none) and a help line. metrics with the same name and different */
+/* labels are exported together. updating a metric never touches the */
+/* registry; only registering, removing and exporting do */
+
+package util.metrics;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.DoubleSupplier;
+
+public class MetricsRegistry {
+    /* Kind:  how a metric is exported */
+    private enum Kind {
+        COUNTER,
+        GAUGE,
+        HISTOGRAM
+    }
+
+    /* Entry:  one registered metric */
+    private static class Entry {
+        private final String name;
+        private final String labels;
+        private final String help;
+        private final Kind kind;
+        private final Object metric;    // Counter, DoubleSupplier or Histogram
+
+        private Entry(String name, String labels, String help, Kind kind,
+                      Object metric) {
+            this.name = name;
+            this.labels = labels;
+            this.help = help;
+            this.kind = kind;
+            this.metric = metric;
+        }
+    }
+
+    // keyed by name, NUL, labels: sorts metrics of one name together
+    private final ConcurrentSkipListMap<String, Entry> entries
+            = new ConcurrentSkipListMap<>();
+
+    /* label:  a label string of one key and value, e.g., for a peer */
+    public static String label(String key, String value) {
+        String escaped = value.replace("\\", "\\\\").replace("\"", "\\\"")
+                .replace("\n", "\\n");
+        return key + "=\"" + escaped + "\"";
+    }
+
+    /* counter:  register a new Counter, or return the one registered */
+    public Counter counter(String name, String labels, String help) {
+        return (Counter) add(name, labels, help, Kind.COUNTER, new Counter()).metric;
+    }
+
+    /* counter:  register an existing Counter, e.g., one a peer owns */
+    public void counter(String name, String labels, String help, Counter counter) {
+        add(name, labels, help, Kind.COUNTER, counter);
+    }
+
+    /* gauge:  register a value read when exported */
+    /* value may be called from any thread, so must not need a lock */
+    /* that the exporter could wait long on */
+    public void gauge(String name, String labels, String help, DoubleSupplier value) {
+        add(name, labels, help, Kind.GAUGE, value);
+    }
+
+    /* rate:  register the per-second rate of a Counter as a gauge */
+    public void rate(String name, String labels, String help, Counter counter) {
+        Rate rate = new Rate(counter);
+        add(name, labels, help, Kind.GAUGE, (DoubleSupplier) rate::get);
+    }
+
+    /* histogram:  register a new Histogram, or return the one registered */
+    public Histogram histogram(String name, String labels, String help) {
+        return (Histogram) add(name, labels, help, Kind.HISTOGRAM,
+                               new Histogram()).metric;
+    }
+
+    /* removeLabels:  drop every metric with exactly these labels, e.g., */
+    /* those of a peer that has gone */
+    public void removeLabels(String labels) {
+        entries.values().removeIf(e -> e.labels.equals(labels));
+    }
+
+    private Entry add(String name, String labels, String help, Kind kind,
+                      Object metric) {
+        return entries.computeIfAbsent(name + '\0' + labels,
+                k -> new Entry(name, labels, help, kind, metric));
+    }
+
+    /* toPrometheus:  every metric in the Prometheus text format */
+    public String toPrometheus() {
+        StringBuilder sb = new StringBuilder();
+        String lastName = null;
+        for (Entry e : entries.values()) {
+            if (!e.name.equals(lastName)) {
+                sb.append("# HELP ").append(e.name).append(' ').append(e.help).append('\n');
+                sb.append("# TYPE ").append(e.name).append(' ')
+                        .append(e.kind.name().toLowerCase()).append('\n');
+                lastName = e.name;
+            }
+            switch (e.kind) {
+                case COUNTER -> appendSample(sb, e.name, e.labels,
+                                             ((Counter) e.metric).get());
+                case GAUGE -> appendSample(sb, e.name, e.labels,
+                                           ((DoubleSupplier) e.metric).getAsDouble());
+                case HISTOGRAM -> appendHistogram(sb, e);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void appendHistogram(StringBuilder sb, Entry e) {
+        Histogram h = (Histogram) e.metric;
+        String sep = e.labels.isEmpty() ? "" : e.labels + ",";
+        long cumulative = 0;
+        for (int i = 0; i < Histogram.NUM_BOUNDS; ++i) {
+            cumulative += h.getBucket(i);
+            appendSample(sb, e.name + "_bucket",
+                         sep + "le=\"" + Histogram.getBound(i) + "\"", cumulative);
+        }
+        cumulative += h.getBucket(Histogram.NUM_BOUNDS);
+        appendSample(sb, e.name + "_bucket", sep + "le=\"+Inf\"", cumulative);
+        appendSample(sb, e.name + "_sum", e.labels, h.getSum());
+        appendSample(sb, e.name + "_count", e.labels, cumulative);
+    }
+
+    private static void appendSample(StringBuilder sb, String name, String labels,
+                                     double value) {
+        sb.append(name);
+        if (!labels.isEmpty()) {
+            sb.append('{').append(labels).append('}');
+        }
+        sb.append(' ');
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            sb.append((long) value);
+        } else {
+            sb.append(value);
+        }
+        sb.append('\n');
+    }
+
+    /* snapshot:  current value of every metric, keyed as exported to JMX */
+    /* (e.g., "bt_peer_downloaded_bytes_total{peer=...}"); a histogram gives */
+    /* its _count and _sum */
+    public Map<String, Number> snapshot() {
+        Map<String, Number> values = new LinkedHashMap<>();
+        for (Entry e : entries.values()) {
+            String suffix = e.labels.isEmpty() ? "" : "{" + e.labels + "}";
+            switch (e.kind) {
+                case COUNTER -> values.put(e.name + suffix, ((Counter) e.metric).get());
+                case GAUGE -> values.put(e.name + suffix,
+                                         ((DoubleSupplier) e.metric).getAsDouble());
+                case HISTOGRAM -> {
+                    Histogram h = (Histogram) e.metric;
+                    values.put(e.name + "_count" + suffix, h.getCount());
+                    values.put(e.name + "_sum" + suffix, h.getSum());
+                }
+            }
+        }
+        return values;
+    }
+
+    /* registerMBean:  publish the metrics as read-only attributes of an */
+    /* MBean on the platform MBean server, e.g., for jconsole */
+    public void registerMBean(String objectName) throws JMException {
+        ObjectName name = new ObjectName(objectName);
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new MBean(), name);
+    }
+
+    /* MBean:  a DynamicMBean whose attributes are the current metrics */
+    private class MBean implements DynamicMBean {
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Number value = snapshot().get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Number> values = snapshot();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                if (values.containsKey(attribute)) {
+                    list.add(new Attribute(attribute, values.get(attribute)));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("metrics are read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException(actionName);
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            Map<String, Number> values = snapshot();
+            MBeanAttributeInfo[] attrs = new MBeanAttributeInfo[values.size()];
+            int i = 0;
+            for (Map.Entry<String, Number> v : values.entrySet()) {
+                attrs[i++] = new MBeanAttributeInfo(v.getKey(),
+                        v.getValue().getClass().getName(), v.getKey(),
+                        true, false, false);
+            }
+            return new MBeanInfo(MetricsRegistry.class.getName(), "BitClient metrics",
+                                 attrs, null, null, null);
+        }
+    }
+}
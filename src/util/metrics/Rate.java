@@ -0,0 +1,38 @@
+/* Rate.java:  per-second rate of a Counter */
+/* Christopher Chute */
+
+/* the counter is updated as usual and the rate is worked out only when */
+/* read, from how much the counter grew since the previous sample. a */
+/* sample is taken at most once per SAMPLE_NS, so frequent readers see */
+/* the rate over the last second or so and rare readers over the time */
+/* since they last looked */
+
+package util.metrics;
+
+public class Rate {
+    private static final long SAMPLE_NS = 1_000_000_000L;
+
+    private final Counter counter;
+    private long sampledAt;          // System.nanoTime() of the last sample
+    private long sampledCount;       // counter value then
+    private double rate = 0;         // per second over the last interval
+
+    public Rate(Counter counter) {
+        this.counter = counter;
+        this.sampledAt = System.nanoTime();
+        this.sampledCount = counter.get();
+    }
+
+    /* get:  counts per second */
+    public synchronized double get() {
+        long now = System.nanoTime();
+        long elapsed = now - sampledAt;
+        if (elapsed >= SAMPLE_NS) {
+            long count = counter.get();
+            rate = (count - sampledCount) * 1e9 / elapsed;
+            sampledAt = now;
+            sampledCount = count;
+        }
+        return rate;
+    }
+}
@@ -0,0 +1,143 @@
+/* ChannelCache.java:  bounded LRU cache of open FileChannels */
+/* Christopher Chute */
+
+/* a torrent may have far more files than the process should hold open, */
+/* so channels are opened on first use and the least recently used idle */
+/* one is closed once more than maxOpen are open. a channel in use (between */
+/* acquire and release) is never closed under its user; if every open */
+/* channel is in use, the cache goes over maxOpen until some are released */
+
+package util.storage;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+public class ChannelCache {
+    /* Handle:  an open channel and how many callers are using it */
+    public static class Handle {
+        private final FileChannel channel;
+        private int numUsers = 0;    // guarded by the cache
+
+        private Handle(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        public FileChannel getChannel() {
+            return channel;
+        }
+    }
+
+    private final Path[] paths;          // file of each id
+    private final boolean writable;
+    private final int maxOpen;
+    // least recently used first
+    private final LinkedHashMap<Integer, Handle> open
+            = new LinkedHashMap<>(16, 0.75f, true);
+    private boolean isClosed = false;
+    private IOException evictError = null;    // reported by the next flush
+
+    public ChannelCache(Path[] paths, boolean writable, int maxOpen) {
+        this.paths = paths;
+        this.writable = writable;
+        this.maxOpen = Math.max(1, maxOpen);
+    }
+
+    /* acquire:  the channel for file id, opening it if needed */
+    /* the caller must release the handle when done with the channel */
+    public synchronized Handle acquire(int id) throws IOException {
+        if (isClosed) {
+            throw new IOException("storage is closed");
+        }
+        Handle handle = open.get(id);
+        if (handle == null) {
+            FileChannel channel = writable
+                    ? FileChannel.open(paths[id], StandardOpenOption.READ,
+                                       StandardOpenOption.WRITE)
+                    : FileChannel.open(paths[id], StandardOpenOption.READ);
+            handle = new Handle(channel);
+            open.put(id, handle);
+            evict();
+        }
+        ++handle.numUsers;
+        return handle;
+    }
+
+    /* release:  done with a handle from acquire */
+    public synchronized void release(Handle handle) {
+        --handle.numUsers;
+        if (open.size() > maxOpen) {
+            evict();
+        }
+    }
+
+    /* getOpenCount:  number of channels open now */
+    public synchronized int getOpenCount() {
+        return open.size();
+    }
+
+    /* flush:  force every open writable channel to the device */
+    /* closed channels were forced as they were evicted */
+    public synchronized void flush() throws IOException {
+        if (evictError != null) {
+            IOException error = evictError;
+            evictError = null;
+            throw error;
+        }
+        if (!writable) {
+            return;
+        }
+        for (Handle handle : open.values()) {
+            handle.channel.force(false);
+        }
+    }
+
+    /* close:  close every channel; later acquires fail */
+    public synchronized void close() throws IOException {
+        isClosed = true;
+        IOException error = null;
+        for (Handle handle : open.values()) {
+            try {
+                closeChannel(handle);
+            } catch (IOException ex) {
+                error = ex;
+            }
+        }
+        open.clear();
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /* evict:  close idle channels, oldest first, until at most maxOpen */
+    private void evict() {
+        Iterator<Handle> it = open.values().iterator();
+        while (open.size() > maxOpen && it.hasNext()) {
+            Handle handle = it.next();
+            if (handle.numUsers > 0) {
+                continue;
+            }
+            it.remove();
+            try {
+                closeChannel(handle);
+            } catch (IOException ex) {
+                evictError = ex;
+            }
+        }
+    }
+
+    /* closeChannel:  force written data out first, since a later flush */
+    /* will not see this channel */
+    private void closeChannel(Handle handle) throws IOException {
+        try {
+            if (writable) {
+                handle.channel.force(false);
+            }
+        } finally {
+            handle.channel.close();
+        }
+    }
+}
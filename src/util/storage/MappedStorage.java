@@ -0,0 +1,128 @@
+/* MappedStorage.java:  PieceStorage backed by memory-mapped chunks of a file */
+/* Christopher Chute */
+
+/* the file is mapped in fixed-size chunks (a single MappedByteBuffer is */
+/* limited to 2 GB); blocks are copied with absolute get/put so threads */
+/* working on different pieces never share a position or file pointer */
+
+package util.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+public class MappedStorage implements PieceStorage {
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024 * 1024;
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer[] chunks;   // chunk i maps [i*size, ...)
+    private final int chunkSize;
+    private final long length;
+
+    public MappedStorage(File source, long length, boolean writable)
+            throws IOException {
+        this(source, length, writable, DEFAULT_CHUNK_SIZE);
+    }
+
+    /* MappedStorage:  map source read-only, or read/write and sized to */
+    /* length if writable */
+    public MappedStorage(File source, long length, boolean writable, int chunkSize)
+            throws IOException {
+        this.file = new RandomAccessFile(source, writable ? "rw" : "r");
+        this.length = length;
+        this.chunkSize = chunkSize;
+        if (writable && file.length() != length) {
+            file.setLength(length);    // leave an existing file's mtime alone
+        }
+        FileChannel channel = file.getChannel();
+        FileChannel.MapMode mode = writable ? FileChannel.MapMode.READ_WRITE
+                                            : FileChannel.MapMode.READ_ONLY;
+        int numChunks = (int) ((length + chunkSize - 1) / chunkSize);
+        this.chunks = new MappedByteBuffer[numChunks];
+        for (int i = 0; i < numChunks; ++i) {
+            long start = (long) i * chunkSize;
+            chunks[i] = channel.map(mode, start, Math.min(chunkSize, length - start));
+        }
+    }
+
+    @Override
+    public int read(long offset, ByteBuffer dst) throws IOException {
+        int len = (int) Math.min(dst.remaining(), Math.max(0, length - offset));
+        int done = 0;
+        while (done < len) {
+            MappedByteBuffer chunk = chunks[(int) ((offset + done) / chunkSize)];
+            int pos = (int) ((offset + done) % chunkSize);
+            int n = Math.min(len - done, chunk.capacity() - pos);
+            dst.put(dst.position(), chunk, pos, n);
+            dst.position(dst.position() + n);
+            done += n;
+        }
+        return done;
+    }
+
+    @Override
+    public void write(long offset, ByteBuffer src) throws IOException {
+        if (offset + src.remaining() > length) {
+            throw new IOException("write past end of storage");
+        }
+        while (src.hasRemaining()) {
+            MappedByteBuffer chunk = chunks[(int) (offset / chunkSize)];
+            int pos = (int) (offset % chunkSize);
+            int n = Math.min(src.remaining(), chunk.capacity() - pos);
+            chunk.put(pos, src, src.position(), n);
+            src.position(src.position() + n);
+            offset += n;
+        }
+    }
+
+    @Override
+    public long transferTo(long offset, long count, WritableByteChannel target)
+            throws IOException {
+        // send from the mapped pages; stop at a chunk edge or a full socket
+        if (offset >= length || count <= 0) {
+            return 0;
+        }
+        MappedByteBuffer chunk = chunks[(int) (offset / chunkSize)];
+        int pos = (int) (offset % chunkSize);
+        int n = (int) Math.min(count, chunk.capacity() - pos);
+        return target.write(chunk.slice(pos, n));
+    }
+
+    @Override
+    public ByteBuffer slice(long offset, int len) throws IOException {
+        int pos = (int) (offset % chunkSize);
+        MappedByteBuffer chunk = chunks[(int) (offset / chunkSize)];
+        if (pos + len <= chunk.capacity()) {
+            return chunk.slice(pos, len).asReadOnlyBuffer();
+        }
+        // spans two chunks, so the view has to be copied together
+        ByteBuffer buf = ByteBuffer.allocate(len);
+        read(offset, buf);
+        buf.flip();
+        return buf.asReadOnlyBuffer();
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public void flush() {
+        for (MappedByteBuffer chunk : chunks) {
+            if (!chunk.isReadOnly()) {
+                chunk.force();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        file.close();
+    }
+}
@@ -0,0 +1,179 @@
+/* MultiFileStorage.java:  PieceStorage over the files of a multi-file torrent */
+/* Christopher Chute */
+
+/* the torrent's data is its files laid end to end, so a piece or block */
+/* may span several files. each file's start offset is kept in a sorted */
+/* array, so the file holding an offset is found by binary search, and */
+/* an access walks on from there through as many files as it covers. */
+/* files are opened through a ChannelCache, which bounds how many are */
+/* open at once no matter how many files the torrent has */
+
+package util.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+public class MultiFileStorage implements PieceStorage {
+    public static final int DEFAULT_MAX_OPEN = 64;
+
+    private final long[] starts;    // offset of each file, ascending
+    private final long[] lengths;
+    private final long length;
+    private final ChannelCache channels;
+
+    public MultiFileStorage(List<File> files, long[] lengths, boolean writable)
+            throws IOException {
+        this(files, lengths, writable, DEFAULT_MAX_OPEN);
+    }
+
+    /* MultiFileStorage:  open files read-only, or read/write, creating */
+    /* them and sizing each to its length if writable */
+    public MultiFileStorage(List<File> files, long[] lengths, boolean writable,
+                            int maxOpen) throws IOException {
+        this.lengths = lengths.clone();
+        this.starts = new long[files.size()];
+        Path[] paths = new Path[files.size()];
+        long offset = 0;
+        for (int i = 0; i < files.size(); ++i) {
+            starts[i] = offset;
+            offset += lengths[i];
+            paths[i] = files.get(i).toPath();
+            if (writable) {
+                create(files.get(i), lengths[i]);
+            }
+        }
+        this.length = offset;
+        this.channels = new ChannelCache(paths, writable, maxOpen);
+    }
+
+    /* create:  make file and its directories, sized to length */
+    private static void create(File file, long length) throws IOException {
+        if (file.isFile() && file.length() == length) {
+            return;    // leave an existing file's mtime alone
+        }
+        File dir = file.getParentFile();
+        if (dir != null) {
+            Files.createDirectories(dir.toPath());
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(length);
+        }
+    }
+
+    /* findFile:  index of the file holding offset, 0 <= offset < length */
+    /* the last file starting at or before offset; an empty file shares */
+    /* its start with the next, so it is never the last such file */
+    private int findFile(long offset) {
+        int i = Arrays.binarySearch(starts, offset);
+        if (i < 0) {
+            return -i - 2;
+        }
+        while (i + 1 < starts.length && starts[i + 1] == offset) {
+            ++i;
+        }
+        return i;
+    }
+
+    @Override
+    public int read(long offset, ByteBuffer dst) throws IOException {
+        int len = (int) Math.min(dst.remaining(), Math.max(0, length - offset));
+        int done = 0;
+        int limit = dst.limit();
+        for (int i = (len > 0) ? findFile(offset) : 0; done < len; ++i) {
+            long pos = offset + done - starts[i];
+            int n = (int) Math.min(len - done, lengths[i] - pos);
+            if (n <= 0) {
+                continue;
+            }
+            dst.limit(dst.position() + n);
+            ChannelCache.Handle handle = channels.acquire(i);
+            try {
+                while (dst.hasRemaining()) {
+                    int numRead = handle.getChannel().read(dst, pos + n - dst.remaining());
+                    if (numRead == -1) {
+                        throw new IOException("file shorter than torrent says");
+                    }
+                }
+            } finally {
+                channels.release(handle);
+                dst.limit(limit);
+            }
+            done += n;
+        }
+        return done;
+    }
+
+    @Override
+    public void write(long offset, ByteBuffer src) throws IOException {
+        if (offset + src.remaining() > length) {
+            throw new IOException("write past end of storage");
+        }
+        int limit = src.limit();
+        for (int i = src.hasRemaining() ? findFile(offset) : 0; src.hasRemaining(); ++i) {
+            long pos = offset - starts[i];
+            int n = (int) Math.min(src.remaining(), lengths[i] - pos);
+            if (n <= 0) {
+                continue;
+            }
+            src.limit(src.position() + n);
+            ChannelCache.Handle handle = channels.acquire(i);
+            try {
+                while (src.hasRemaining()) {
+                    pos += handle.getChannel().write(src, pos);
+                }
+            } finally {
+                channels.release(handle);
+                src.limit(limit);
+            }
+            offset += n;
+        }
+    }
+
+    @Override
+    public long transferTo(long offset, long count, WritableByteChannel target)
+            throws IOException {
+        // send from one file at a time; stop at a file's end
+        if (offset >= length || count <= 0) {
+            return 0;
+        }
+        int i = findFile(offset);
+        long pos = offset - starts[i];
+        ChannelCache.Handle handle = channels.acquire(i);
+        try {
+            return handle.getChannel().transferTo(pos, Math.min(count, lengths[i] - pos),
+                                                  target);
+        } finally {
+            channels.release(handle);
+        }
+    }
+
+    @Override
+    public ByteBuffer slice(long offset, int len) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(len);
+        read(offset, buf);
+        buf.flip();
+        return buf.asReadOnlyBuffer();
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        channels.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channels.close();
+    }
+}
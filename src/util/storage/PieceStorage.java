@@ -0,0 +1,48 @@
+/* PieceStorage.java:  interface for where the pieces of a torrent live */
+/* Christopher Chute */
+
+/* all offsets are absolute positions within the torrent's data, so */
+/* implementations must be safe for concurrent use on disjoint blocks */
+
+package util.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+public interface PieceStorage {
+    /* read:  fill dst from offset, return number of bytes read */
+    int read(long offset, ByteBuffer dst) throws IOException;
+
+    /* write:  write all of src starting at offset */
+    void write(long offset, ByteBuffer src) throws IOException;
+
+    /* write:  write srcs[start..start+count) back to back from offset */
+    /* e.g., a run of adjacent blocks in one gathering write */
+    default void write(long offset, ByteBuffer[] srcs, int start, int count)
+            throws IOException {
+        for (int i = start; i < start + count; ++i) {
+            int len = srcs[i].remaining();
+            write(offset, srcs[i]);
+            offset += len;
+        }
+    }
+
+    /* transferTo:  send up to count bytes from offset to target */
+    /* returns the number of bytes sent, which may be less than count */
+    long transferTo(long offset, long count, WritableByteChannel target)
+            throws IOException;
+
+    /* slice:  return a read-only view of len bytes at offset */
+    /* e.g., for hashing a piece without copying it where possible */
+    ByteBuffer slice(long offset, int len) throws IOException;
+
+    /* length:  total number of bytes stored */
+    long length();
+
+    /* flush:  force written data out to the storage device */
+    void flush() throws IOException;
+
+    /* close:  release the underlying file */
+    void close() throws IOException;
+}
@@ -0,0 +1,99 @@
+/* RandomAccessStorage.java:  PieceStorage backed by a RandomAccessFile */
+/* Christopher Chute */
+
+/* uses positional channel reads/writes, so there is no shared file */
+/* pointer to seek and concurrent blocks do not contend for it */
+
+package util.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+public class RandomAccessStorage implements PieceStorage {
+    private final RandomAccessFile file;    // file to transfer
+    private final FileChannel channel;      // positional access to file
+    private final long length;
+
+    /* RandomAccessStorage:  open source read-only, or read/write and */
+    /* sized to length if writable */
+    public RandomAccessStorage(File source, long length, boolean writable)
+            throws IOException {
+        this.file = new RandomAccessFile(source, writable ? "rw" : "r");
+        this.channel = file.getChannel();
+        this.length = length;
+        if (writable && file.length() != length) {
+            file.setLength(length);    // leave an existing file's mtime alone
+        }
+    }
+
+    @Override
+    public int read(long offset, ByteBuffer dst) throws IOException {
+        int numRead = 0;
+        while (dst.hasRemaining()) {
+            int n = channel.read(dst, offset + numRead);
+            if (n == -1) {
+                break;
+            }
+            numRead += n;
+        }
+        return numRead;
+    }
+
+    @Override
+    public void write(long offset, ByteBuffer src) throws IOException {
+        long pos = offset;
+        while (src.hasRemaining()) {
+            pos += channel.write(src, pos);
+        }
+    }
+
+    /* write:  one gathering write for the whole run; the channel's */
+    /* position is only used here, so guard it and leave other I/O alone */
+    @Override
+    public void write(long offset, ByteBuffer[] srcs, int start, int count)
+            throws IOException {
+        long total = 0;
+        for (int i = start; i < start + count; ++i) {
+            total += srcs[i].remaining();
+        }
+        synchronized (channel) {
+            channel.position(offset);
+            while (total > 0) {
+                total -= channel.write(srcs, start, count);
+            }
+        }
+    }
+
+    @Override
+    public long transferTo(long offset, long count, WritableByteChannel target)
+            throws IOException {
+        return channel.transferTo(offset, count, target);
+    }
+
+    @Override
+    public ByteBuffer slice(long offset, int len) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(len);
+        read(offset, buf);
+        buf.flip();
+        return buf.asReadOnlyBuffer();
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}